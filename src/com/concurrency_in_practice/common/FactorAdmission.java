@@ -0,0 +1,90 @@
+package com.concurrency_in_practice.common;
+
+import java.math.BigInteger;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control in front of FactorEngine.
+ *
+ * The cost of a factorization grows steeply with the size of the input,
+ * so a CostEstimator (by default, the bit length) divides requests into light and heavy ones,
+ * which are admitted and executed separately, so heavy requests cannot starve light ones:
+ *
+ * - Light requests run on the common ForkJoinPool. At most maxLight run at once;
+ *   beyond that a request waits up to lightQueueTimeout for a permit and is then shed.
+ *
+ * - Heavy requests run on a ForkJoinPool of their own with heavyThreads threads.
+ *   At most maxHeavy are admitted at once, running or waiting for the pool; beyond that a request is shed immediately,
+ *   since an expensive request that has to wait would rarely finish in time anyway.
+ *
+ * A shed request fails with RejectedExecutionException.
+ */
+@Annotation.ThreadSafe
+public class FactorAdmission {
+
+    public interface CostEstimator {
+        boolean isHeavy(BigInteger n);
+    }
+
+    public static CostEstimator bitLengthAbove(final int bits) {
+        return new CostEstimator() {
+            public boolean isHeavy(BigInteger n) {
+                return n.bitLength() > bits;
+            }
+        };
+    }
+
+    private final CostEstimator estimator;
+    private final Semaphore lightPermits;
+    private final long lightQueueTimeoutNanos;
+    private final Semaphore heavyPermits;
+    private final ForkJoinPool heavyPool;
+    private final AtomicLong shedRequests = new AtomicLong();
+
+    public FactorAdmission(CostEstimator estimator,
+                           int maxLight, long lightQueueTimeout, TimeUnit unit,
+                           int heavyThreads, int maxHeavy) {
+        this.estimator = estimator;
+        this.lightPermits = new Semaphore(maxLight);
+        this.lightQueueTimeoutNanos = unit.toNanos(lightQueueTimeout);
+        this.heavyPermits = new Semaphore(maxHeavy);
+        this.heavyPool = new ForkJoinPool(heavyThreads);
+    }
+
+    public BigInteger[] factor(BigInteger n) throws InterruptedException {
+        if (estimator.isHeavy(n)) {
+            if (!heavyPermits.tryAcquire())
+                throw shed("too many heavy requests in progress");
+            try {
+                return FactorEngine.factor(n, heavyPool);
+            } finally {
+                heavyPermits.release();
+            }
+        } else {
+            if (!lightPermits.tryAcquire(lightQueueTimeoutNanos, TimeUnit.NANOSECONDS))
+                throw shed("too many requests in progress");
+            try {
+                return FactorEngine.factor(n);
+            } finally {
+                lightPermits.release();
+            }
+        }
+    }
+
+    public long getShedRequests() {
+        return shedRequests.get();
+    }
+
+    public void shutdown() {
+        heavyPool.shutdown();
+    }
+
+    private RejectedExecutionException shed(String reason) {
+        shedRequests.incrementAndGet();
+        return new RejectedExecutionException(reason);
+    }
+}
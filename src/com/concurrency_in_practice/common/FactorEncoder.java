@@ -0,0 +1,171 @@
+package com.concurrency_in_practice.common;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes factorizations for the factorizing servlets without going through strings.
+ *
+ * Every thread encodes into its own reusable direct ByteBuffer, which is handed to the response channel as is,
+ * so encoding a factorization of small factors allocates nothing.
+ *
+ * - BINARY: the number of factors as an unsigned varint, then each factor.
+ *   A factor below 2^63 is the varint of (factor << 1); a larger one is the varint of (length << 1 | 1)
+ *   followed by the length bytes of its two's-complement representation.
+ *
+ * - TEXT: the factors in decimal, separated by spaces and terminated by a newline, for clients that cannot read BINARY.
+ *
+ * A servlet that caches factorizations can cache toBytes alongside them,
+ * and then answers a cache hit with a single write of those bytes.
+ */
+@Annotation.ThreadSafe
+public final class FactorEncoder {
+
+    public enum Format { BINARY, TEXT }
+
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+
+    private static final ThreadLocal<ByteBuffer> buffer = new ThreadLocal<ByteBuffer>() {
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE);
+        }
+    };
+
+    private FactorEncoder() {
+    }
+
+    /**
+     * Encodes factors into dst at its position.
+     *
+     * @throws BufferOverflowException if dst does not have room for the encoding; dst's position is then unspecified
+     */
+    public static void encode(BigInteger[] factors, Format format, ByteBuffer dst) {
+        if (format == Format.BINARY) {
+            putVarint(dst, factors.length);
+            for (BigInteger f : factors) {
+                if (f.bitLength() < 63) {
+                    putVarint(dst, f.longValue() << 1);
+                } else {
+                    byte[] bytes = f.toByteArray();
+                    putVarint(dst, ((long) bytes.length << 1) | 1);
+                    dst.put(bytes);
+                }
+            }
+        } else {
+            for (int i = 0; i < factors.length; i++) {
+                if (i > 0)
+                    dst.put((byte) ' ');
+                if (factors[i].bitLength() < 64)
+                    putDecimal(dst, factors[i].longValue());
+                else
+                    dst.put(factors[i].toString().getBytes(StandardCharsets.US_ASCII));
+            }
+            dst.put((byte) '\n');
+        }
+    }
+
+    /**
+     * Returns the encoding of factors, for caching alongside them.
+     */
+    public static byte[] toBytes(BigInteger[] factors, Format format) {
+        ByteBuffer buf = encodeIntoThreadBuffer(factors, format);
+        byte[] bytes = new byte[buf.remaining()];
+        buf.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Encodes factors straight into this thread's buffer and writes it to the channel.
+     */
+    public static void writeTo(WritableByteChannel channel, BigInteger[] factors, Format format) throws IOException {
+        drain(channel, encodeIntoThreadBuffer(factors, format));
+    }
+
+    /**
+     * Writes an encoding previously returned by toBytes to the channel.
+     */
+    public static void writeTo(WritableByteChannel channel, byte[] encoded) throws IOException {
+        ByteBuffer buf = threadBuffer(encoded.length);
+        buf.put(encoded).flip();
+        drain(channel, buf);
+    }
+
+    /**
+     * Decodes one BINARY factorization from src, advancing its position past it.
+     */
+    public static BigInteger[] decode(ByteBuffer src) {
+        BigInteger[] factors = new BigInteger[(int) getVarint(src)];
+        for (int i = 0; i < factors.length; i++) {
+            long header = getVarint(src);
+            if ((header & 1) == 0) {
+                factors[i] = BigInteger.valueOf(header >>> 1);
+            } else {
+                byte[] bytes = new byte[(int) (header >>> 1)];
+                src.get(bytes);
+                factors[i] = new BigInteger(bytes);
+            }
+        }
+        return factors;
+    }
+
+    private static ByteBuffer encodeIntoThreadBuffer(BigInteger[] factors, Format format) {
+        ByteBuffer buf = threadBuffer(0);
+        while (true) {
+            try {
+                encode(factors, format, buf);
+                buf.flip();
+                return buf;
+            } catch (BufferOverflowException e) {
+                buf = threadBuffer(buf.capacity() * 2);
+            }
+        }
+    }
+
+    /**
+     * Returns this thread's buffer, cleared and with room for at least minCapacity bytes.
+     */
+    private static ByteBuffer threadBuffer(int minCapacity) {
+        ByteBuffer buf = buffer.get();
+        if (buf.capacity() < minCapacity) {
+            buf = ByteBuffer.allocateDirect(Integer.highestOneBit(minCapacity - 1) << 1);
+            buffer.set(buf);
+        }
+        buf.clear();
+        return buf;
+    }
+
+    private static void drain(WritableByteChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining())
+            channel.write(buf);
+    }
+
+    private static void putVarint(ByteBuffer dst, long value) {
+        while ((value & ~0x7FL) != 0) {
+            dst.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        dst.put((byte) value);
+    }
+
+    private static long getVarint(ByteBuffer src) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = src.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0)
+                return value;
+        }
+    }
+
+    private static void putDecimal(ByteBuffer dst, long value) {
+        long divisor = 1;
+        while (value / divisor >= 10)
+            divisor *= 10;
+        for (; divisor > 0; divisor /= 10)
+            dst.put((byte) ('0' + (value / divisor) % 10));
+    }
+}
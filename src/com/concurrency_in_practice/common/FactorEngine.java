@@ -0,0 +1,384 @@
+package com.concurrency_in_practice.common;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Integer factorization for the factorizing servlets.
+ *
+ * factor returns the prime factors of n in ascending order, repeated according to multiplicity.
+ *
+ * - Small factors are removed by trial division by the primes below 2^16, precomputed with a sieve.
+ *   Rather than dividing n by each prime, n is reduced modulo products of primes that fit in a long,
+ *   and the primes are then tested against that long remainder.
+ *
+ * - A cofactor that passes a probable-prime test is prime; one below 2^32 must be prime, since it has no factor below 2^16.
+ *
+ * - Composite cofactors of up to 100 bits are split with Pollard's rho using Brent's cycle detection.
+ *   Larger ones are first attacked with Lenstra's elliptic curve method (stage 1, with growing bounds),
+ *   whose curves run in parallel, and fall back to Pollard-Brent if no curve finds a factor.
+ *
+ * - Every split yields two independent sub-factorizations, which run as subtasks on a ForkJoinPool,
+ *   so a single large request can use all the cores.
+ *
+ * No method finishes quickly on a product of two large primes; such inputs can take arbitrarily long.
+ */
+@Annotation.ThreadSafe
+public final class FactorEngine {
+
+    private static final int SMALL_PRIME_LIMIT = 1 << 16;
+    private static final int[] SMALL_PRIMES = sieve(SMALL_PRIME_LIMIT);
+
+    // SMALL_PRIMES[GROUP_START[g]] .. SMALL_PRIMES[GROUP_START[g + 1] - 1] multiply to GROUP_PRODUCT[g]
+    private static final int[] GROUP_START;
+    private static final BigInteger[] GROUP_PRODUCT;
+
+    static {
+        List<Integer> starts = new ArrayList<>();
+        List<BigInteger> products = new ArrayList<>();
+        int i = 0;
+        while (i < SMALL_PRIMES.length) {
+            starts.add(i);
+            long product = 1;
+            while (i < SMALL_PRIMES.length && product <= Long.MAX_VALUE / SMALL_PRIMES[i])
+                product *= SMALL_PRIMES[i++];
+            products.add(BigInteger.valueOf(product));
+        }
+        starts.add(SMALL_PRIMES.length);
+
+        GROUP_START = new int[starts.size()];
+        for (int g = 0; g < GROUP_START.length; g++)
+            GROUP_START[g] = starts.get(g);
+        GROUP_PRODUCT = products.toArray(new BigInteger[0]);
+    }
+
+    private static final BigInteger TWO = BigInteger.valueOf(2);
+    private static final BigInteger THREE = BigInteger.valueOf(3);
+    private static final int PRIME_CERTAINTY = 40;
+    private static final int RHO_MAX_BITS = 100;
+
+    // Stage 1 bounds and curve counts for finding factors of roughly 15, 20 and 25 digits
+    private static final int[] ECM_B1 = { 2000, 11000, 50000 };
+    private static final int[] ECM_CURVES = { 25, 90, 300 };
+
+    private FactorEngine() {
+    }
+
+    public static BigInteger[] factor(BigInteger n) {
+        return factor(n, ForkJoinPool.commonPool());
+    }
+
+    public static BigInteger[] factor(BigInteger n, ForkJoinPool pool) {
+        if (n.signum() <= 0)
+            throw new IllegalArgumentException("can only factor positive integers: " + n);
+
+        List<BigInteger> factors = new ArrayList<>();
+        BigInteger cofactor = trialDivide(n, factors);
+
+        if (!cofactor.equals(BigInteger.ONE))
+            factors.addAll(pool.invoke(new FactorTask(cofactor)));
+
+        Collections.sort(factors);
+        return factors.toArray(new BigInteger[0]);
+    }
+
+    /**
+     * Factors a number that has no prime factor below 2^16.
+     */
+    private static final class FactorTask extends RecursiveTask<List<BigInteger>> {
+        private static final long serialVersionUID = 1L;
+
+        private final BigInteger n;
+
+        FactorTask(BigInteger n) {
+            this.n = n;
+        }
+
+        protected List<BigInteger> compute() {
+            if (isPrime(n))
+                return Collections.singletonList(n);
+
+            BigInteger d = split(n);
+            FactorTask left = new FactorTask(d);
+            FactorTask right = new FactorTask(n.divide(d));
+            left.fork();
+            List<BigInteger> factors = new ArrayList<>(right.compute());
+            factors.addAll(left.join());
+            return factors;
+        }
+    }
+
+    /**
+     * Adds the prime factors below 2^16 to factors and returns what is left of n.
+     */
+    private static BigInteger trialDivide(BigInteger n, List<BigInteger> factors) {
+        for (int g = 0; g < GROUP_PRODUCT.length; g++) {
+            if (n.bitLength() < 63)
+                return trialDivideLong(n.longValue(), GROUP_START[g], factors);
+
+            long r = n.mod(GROUP_PRODUCT[g]).longValue();
+            for (int i = GROUP_START[g]; i < GROUP_START[g + 1]; i++) {
+                int p = SMALL_PRIMES[i];
+                if (r % p != 0)
+                    continue;
+
+                BigInteger bp = BigInteger.valueOf(p);
+                BigInteger[] qr = n.divideAndRemainder(bp);
+                while (qr[1].signum() == 0) {
+                    factors.add(bp);
+                    n = qr[0];
+                    qr = n.divideAndRemainder(bp);
+                }
+            }
+        }
+        return n;
+    }
+
+    private static BigInteger trialDivideLong(long n, int from, List<BigInteger> factors) {
+        for (int i = from; i < SMALL_PRIMES.length; i++) {
+            int p = SMALL_PRIMES[i];
+            if ((long) p * p > n)
+                break;
+            if (n % p == 0) {
+                BigInteger bp = BigInteger.valueOf(p);
+                do {
+                    factors.add(bp);
+                    n /= p;
+                } while (n % p == 0);
+            }
+        }
+        if (n > 1 && n < (long) SMALL_PRIME_LIMIT * SMALL_PRIME_LIMIT) {
+            // No factor below 2^16 remains, so n is prime
+            factors.add(BigInteger.valueOf(n));
+            return BigInteger.ONE;
+        }
+        return BigInteger.valueOf(n);
+    }
+
+    private static boolean isPrime(BigInteger n) {
+        return n.bitLength() <= 32 || n.isProbablePrime(PRIME_CERTAINTY);
+    }
+
+    /**
+     * Returns a nontrivial factor of the composite n.
+     */
+    private static BigInteger split(BigInteger n) {
+        // Neither rho nor ECM finds the factor of a prime power quickly
+        BigInteger root = perfectPowerRoot(n);
+        if (root != null)
+            return root;
+
+        if (n.bitLength() > RHO_MAX_BITS) {
+            for (int level = 0; level < ECM_B1.length; level++) {
+                BigInteger d = ecm(n, ECM_B1[level], ECM_CURVES[level]);
+                if (d != null)
+                    return d;
+            }
+        }
+        return pollardBrent(n);
+    }
+
+    /**
+     * Returns r if n = r^k for some k >= 2, or null.
+     * n has no factor below 2^16, so r >= 2^16 and k is at most n.bitLength() / 16.
+     */
+    private static BigInteger perfectPowerRoot(BigInteger n) {
+        for (int k = 2; k <= n.bitLength() / 16; k++) {
+            BigInteger root = integerRoot(n, k);
+            if (root.pow(k).equals(n))
+                return root;
+        }
+        return null;
+    }
+
+    /**
+     * The largest r with r^k <= n, by Newton's method starting above the root.
+     */
+    private static BigInteger integerRoot(BigInteger n, int k) {
+        if (k == 2)
+            return n.sqrt();
+        BigInteger bigK = BigInteger.valueOf(k);
+        BigInteger kMinusOne = BigInteger.valueOf(k - 1);
+        BigInteger x = BigInteger.ONE.shiftLeft((n.bitLength() + k - 1) / k);
+        while (true) {
+            BigInteger y = kMinusOne.multiply(x).add(n.divide(x.pow(k - 1))).divide(bigK);
+            if (y.compareTo(x) >= 0)
+                return x;
+            x = y;
+        }
+    }
+
+    /**
+     * Pollard's rho with Brent's cycle detection, multiplying 128 differences together between gcds.
+     */
+    static BigInteger pollardBrent(BigInteger n) {
+        if (!n.testBit(0))
+            return TWO;
+
+        Random random = ThreadLocalRandom.current();
+        final int m = 128;
+
+        while (true) {
+            BigInteger c = randomBelow(n.subtract(BigInteger.ONE), random).add(BigInteger.ONE);
+            BigInteger y = randomBelow(n, random);
+            BigInteger x = y, ys = y, q = BigInteger.ONE, g = BigInteger.ONE;
+
+            for (long r = 1; g.equals(BigInteger.ONE); r <<= 1) {
+                x = y;
+                for (long i = 0; i < r; i++)
+                    y = y.multiply(y).add(c).mod(n);
+
+                for (long k = 0; k < r && g.equals(BigInteger.ONE); k += m) {
+                    ys = y;
+                    for (long i = 0; i < Math.min(m, r - k); i++) {
+                        y = y.multiply(y).add(c).mod(n);
+                        q = q.multiply(x.subtract(y).abs()).mod(n);
+                    }
+                    g = q.gcd(n);
+                }
+            }
+
+            if (g.equals(n)) {
+                // The batch overshot; step back through it one gcd at a time
+                do {
+                    ys = ys.multiply(ys).add(c).mod(n);
+                    g = x.subtract(ys).abs().gcd(n);
+                } while (g.equals(BigInteger.ONE));
+            }
+
+            if (!g.equals(n))
+                return g;
+        }
+    }
+
+    /**
+     * Lenstra's elliptic curve method, stage 1 only.
+     * The curves run in parallel and stop as soon as one of them finds a factor; returns null if none does.
+     */
+    static BigInteger ecm(final BigInteger n, final int b1, int curves) {
+        final AtomicReference<BigInteger> found = new AtomicReference<>();
+        int tasks = Math.min(curves, Math.max(1, ForkJoinPool.getCommonPoolParallelism()));
+        List<RecursiveTask<Void>> workers = new ArrayList<>();
+
+        for (int t = 0; t < tasks; t++) {
+            final int share = curves / tasks + ((t < curves % tasks) ? 1 : 0);
+            workers.add(new RecursiveTask<Void>() {
+                protected Void compute() {
+                    for (int i = 0; i < share && found.get() == null; i++) {
+                        BigInteger d = ecmCurve(n, b1, found);
+                        if (d != null)
+                            found.compareAndSet(null, d);
+                    }
+                    return null;
+                }
+            });
+        }
+
+        RecursiveTask.invokeAll(workers);
+        return found.get();
+    }
+
+    /**
+     * Runs stage 1 on one random Montgomery curve By^2 = x^3 + Ax^2 + x, chosen with Suyama's parametrization.
+     * Points are kept as projective (X : Z), so the ladder needs no modular inverses.
+     */
+    private static BigInteger ecmCurve(BigInteger n, int b1, AtomicReference<BigInteger> found) {
+        BigInteger sigma = BigInteger.valueOf(6 + ThreadLocalRandom.current().nextInt(Integer.MAX_VALUE - 6));
+        BigInteger u = sigma.multiply(sigma).subtract(BigInteger.valueOf(5)).mod(n);
+        BigInteger v = sigma.shiftLeft(2).mod(n);
+        BigInteger[] point = { u.pow(3).mod(n), v.pow(3).mod(n) };
+
+        // a24 = (A + 2) / 4 = (v - u)^3 (3u + v) / (16 u^3 v)
+        BigInteger denominator = point[0].multiply(v).shiftLeft(4).mod(n);
+        BigInteger g = denominator.gcd(n);
+        if (!g.equals(BigInteger.ONE))
+            return g.equals(n) ? null : g;
+        BigInteger a24 = v.subtract(u).pow(3).multiply(THREE.multiply(u).add(v))
+                .multiply(denominator.modInverse(n)).mod(n);
+
+        for (int p : SMALL_PRIMES) {
+            if (p > b1 || found.get() != null)
+                break;
+            long pe = p;
+            while (pe * p <= b1)
+                pe *= p;
+            point = multiply(point, pe, a24, n);
+        }
+
+        g = point[1].gcd(n);
+        return (g.equals(BigInteger.ONE) || g.equals(n)) ? null : g;
+    }
+
+    /**
+     * Returns k * point by the Montgomery ladder.
+     */
+    private static BigInteger[] multiply(BigInteger[] point, long k, BigInteger a24, BigInteger n) {
+        BigInteger[] r0 = point;
+        BigInteger[] r1 = doubled(point, a24, n);
+        for (int bit = 62 - Long.numberOfLeadingZeros(k); bit >= 0; bit--) {
+            if (((k >>> bit) & 1) != 0) {
+                r0 = sum(r0, r1, point, n);
+                r1 = doubled(r1, a24, n);
+            } else {
+                r1 = sum(r0, r1, point, n);
+                r0 = doubled(r0, a24, n);
+            }
+        }
+        return r0;
+    }
+
+    private static BigInteger[] doubled(BigInteger[] p, BigInteger a24, BigInteger n) {
+        BigInteger s = p[0].add(p[1]);
+        BigInteger d = p[0].subtract(p[1]);
+        BigInteger ss = s.multiply(s).mod(n);
+        BigInteger dd = d.multiply(d).mod(n);
+        BigInteger t = ss.subtract(dd);
+        return new BigInteger[] { ss.multiply(dd).mod(n), t.multiply(dd.add(a24.multiply(t))).mod(n) };
+    }
+
+    /**
+     * Returns p + q, given their difference.
+     */
+    private static BigInteger[] sum(BigInteger[] p, BigInteger[] q, BigInteger[] difference, BigInteger n) {
+        BigInteger u = p[0].subtract(p[1]).multiply(q[0].add(q[1]));
+        BigInteger v = p[0].add(p[1]).multiply(q[0].subtract(q[1]));
+        BigInteger plus = u.add(v).mod(n);
+        BigInteger minus = u.subtract(v).mod(n);
+        return new BigInteger[] {
+                difference[1].multiply(plus).multiply(plus).mod(n),
+                difference[0].multiply(minus).multiply(minus).mod(n) };
+    }
+
+    private static BigInteger randomBelow(BigInteger bound, Random random) {
+        BigInteger r;
+        do {
+            r = new BigInteger(bound.bitLength(), random);
+        } while (r.compareTo(bound) >= 0);
+        return r;
+    }
+
+    private static int[] sieve(int limit) {
+        boolean[] composite = new boolean[limit];
+        int count = 0;
+        for (int i = 2; i < limit; i++) {
+            if (composite[i])
+                continue;
+            count++;
+            for (long j = (long) i * i; j < limit; j += i)
+                composite[(int) j] = true;
+        }
+
+        int[] primes = new int[count];
+        for (int i = 2, k = 0; i < limit; i++)
+            if (!composite[i])
+                primes[k++] = i;
+        return primes;
+    }
+}
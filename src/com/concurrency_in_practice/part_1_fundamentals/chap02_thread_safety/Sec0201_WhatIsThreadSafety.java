@@ -1,6 +1,7 @@
 package com.concurrency_in_practice.part_1_fundamentals.chap02_thread_safety;
 
 import com.concurrency_in_practice.common.Annotation.ThreadSafe;
+import com.concurrency_in_practice.common.FactorEngine;
 
 import javax.servlet.Servlet;
 import javax.servlet.ServletRequest;
@@ -62,7 +63,7 @@ public class Sec0201_WhatIsThreadSafety {
         }
 
         private BigInteger[] factor(BigInteger i) {
-            return null;
+            return FactorEngine.factor(i);
         }
 
         private void encodeIntoResponse(ServletResponse resp, BigInteger[] factors) {
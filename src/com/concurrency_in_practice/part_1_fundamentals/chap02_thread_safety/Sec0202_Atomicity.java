@@ -2,6 +2,7 @@ package com.concurrency_in_practice.part_1_fundamentals.chap02_thread_safety;
 
 import com.concurrency_in_practice.common.Annotation.NotThreadSafe;
 import com.concurrency_in_practice.common.Annotation.ThreadSafe;
+import com.concurrency_in_practice.common.FactorEngine;
 
 import javax.servlet.Servlet;
 import javax.servlet.ServletRequest;
@@ -82,7 +83,7 @@ public class Sec0202_Atomicity {
         }
 
         private BigInteger[] factor(BigInteger i) {
-            return null;
+            return FactorEngine.factor(i);
         }
 
         private void encodeIntoResponse(ServletResponse resp, BigInteger[] factors) {
@@ -138,7 +139,7 @@ public class Sec0202_Atomicity {
         }
 
         private BigInteger[] factor(BigInteger i) {
-            return null;
+            return FactorEngine.factor(i);
         }
 
         private void encodeIntoResponse(ServletResponse resp, BigInteger[] factors) {
@@ -3,6 +3,7 @@ package com.concurrency_in_practice.part_1_fundamentals.chap02_thread_safety;
 import com.concurrency_in_practice.common.Annotation.GuardedBy;
 import com.concurrency_in_practice.common.Annotation.NotThreadSafe;
 import com.concurrency_in_practice.common.Annotation.ThreadSafe;
+import com.concurrency_in_practice.common.FactorEngine;
 
 import javax.servlet.Servlet;
 import javax.servlet.ServletRequest;
@@ -96,7 +97,7 @@ public class Sec0203_Locking {
         }
 
         private BigInteger[] factor(BigInteger i) {
-            return null;
+            return FactorEngine.factor(i);
         }
 
         private void encodeIntoResponse(ServletResponse resp, BigInteger[] factors) {
@@ -132,7 +133,7 @@ public class Sec0203_Locking {
         }
 
         private BigInteger[] factor(BigInteger i) {
-            return null;
+            return FactorEngine.factor(i);
         }
 
         private void encodeIntoResponse(ServletResponse resp, BigInteger[] factors) {
@@ -1,12 +1,23 @@
 package com.concurrency_in_practice.part_1_fundamentals.chap02_thread_safety;
 
 import com.concurrency_in_practice.common.Annotation.GuardedBy;
+import com.concurrency_in_practice.common.Annotation.Immutable;
 import com.concurrency_in_practice.common.Annotation.ThreadSafe;
+import com.concurrency_in_practice.common.FactorEngine;
 
 import javax.servlet.Servlet;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import java.math.BigInteger;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.concurrency_in_practice.part_1_fundamentals.chap05_building_blocks.Sec0505_Synchronizers.launderThrowable;
 
 /**
  * Created by sofia on 5/25/17.
@@ -42,6 +53,22 @@ import java.math.BigInteger;
  * ********************************************************************************************************************************
  * Avoid holding locks during lengthy computations or operations at risk of not completing quickly such as network or console I/O.
  * ********************************************************************************************************************************
+ *
+ * Even the short synchronized blocks of CachedFactorizer become a bottleneck once enough cores call it,
+ * because every request, hit or miss, acquires the same monitor just to bump two counters.
+ * StripedCachedFactorizer keeps the last result in a volatile reference to an immutable holder (see Listing 3.13)
+ * and spreads the counters over stripes, each on its own cache lines, chosen by the calling thread.
+ * Threads on different stripes never contend, and a cache hit takes no lock at all.
+ * The cost moves to the readers: getHits and getCacheHitRatio sum all the stripes,
+ * and the sum is not an atomic snapshot. It is close enough for monitoring, and it never reports a ratio above one,
+ * because a request counts its hit before its cache hit and a reader sums the cache hits before the hits.
+ *
+ * Neither servlet helps when many requests for the same number arrive together:
+ * SynchronizedFactorizer makes them wait for each other in turn, and CachedFactorizer factors the number once per request.
+ * CoalescingFactorizer lets the first request for a number factor it and makes concurrent duplicates wait for that result,
+ * using the putIfAbsent idiom of Memorizer (Listing 5.19).
+ * Unlike Memorizer it forgets the computation as soon as it completes, so it holds one entry per number in flight
+ * rather than one per number ever requested. getCoalescedCalls reports how many requests were served this way.
  */
 public class Sec0205_LivenessAndPerformance {
 
@@ -90,12 +117,165 @@ public class Sec0205_LivenessAndPerformance {
         }
 
         private BigInteger[] factor(BigInteger i) {
+            return FactorEngine.factor(i);
+        }
+
+        private void encodeIntoResponse(ServletResponse resp, BigInteger[] factors) {
+
+        }
+    }
+
+    /**
+     * CachedFactorizer with striped, padded counters and no monitor.
+     */
+    @ThreadSafe
+    public abstract class StripedCachedFactorizer implements Servlet {
+        private static final int STRIDE = 16;     // Longs per stripe: 128 bytes, so stripes never share a cache line
+        private static final int HITS = 0;
+        private static final int CACHE_HITS = 1;
+
+        private final int mask;
+        private final AtomicLongArray counters;
+        private volatile LastResult lastResult = new LastResult(null, null);
+
+        public StripedCachedFactorizer() {
+            int stripes = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() - 1) << 1);
+            mask = stripes - 1;
+            counters = new AtomicLongArray(stripes * STRIDE);
+        }
+
+        public long getHits() {
+            return sum(HITS);
+        }
+
+        public double getCacheHitRatio() {
+            long cacheHits = sum(CACHE_HITS);
+            long hits = sum(HITS);
+            return (double) cacheHits / (double) hits;
+        }
+
+        public void service(ServletRequest req, ServletResponse resp) {
+            BigInteger i = extractFromRequest(req);
+            int stripe = stripe();
+            counters.getAndIncrement(stripe + HITS);
+
+            BigInteger[] factors = lastResult.getFactors(i);
+            if (factors != null) {
+                counters.getAndIncrement(stripe + CACHE_HITS);
+            } else {
+                factors = factor(i);
+                lastResult = new LastResult(i, factors);
+            }
+
+            encodeIntoResponse(resp, factors);
+        }
+
+        private int stripe() {
+            long id = Thread.currentThread().getId();
+            int h = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+            return ((h ^ (h >>> 16)) & mask) * STRIDE;
+        }
+
+        private long sum(int counter) {
+            long sum = 0;
+            for (int i = counter; i < counters.length(); i += STRIDE)
+                sum += counters.get(i);
+            return sum;
+        }
+
+        private BigInteger extractFromRequest(ServletRequest req) {
+            return null;
+        }
+
+        private BigInteger[] factor(BigInteger i) {
+            return FactorEngine.factor(i);
+        }
+
+        private void encodeIntoResponse(ServletResponse resp, BigInteger[] factors) {
+
+        }
+    }
+
+    /**
+     * Factorizing servlet in which concurrent requests for the same number share one computation.
+     */
+    @ThreadSafe
+    public abstract class CoalescingFactorizer implements Servlet {
+        private final ConcurrentMap<BigInteger, FutureTask<BigInteger[]>> inFlight = new ConcurrentHashMap<>();
+        private final AtomicLong coalescedCalls = new AtomicLong();
+
+        public long getCoalescedCalls() {
+            return coalescedCalls.get();
+        }
+
+        public void service(ServletRequest req, ServletResponse resp) {
+            try {
+                BigInteger i = extractFromRequest(req);
+                encodeIntoResponse(resp, factorOnce(i));
+            } catch (InterruptedException e) {
+                encodeError(resp, "factorization interrupted");
+            }
+        }
+
+        private BigInteger[] factorOnce(final BigInteger i) throws InterruptedException {
+            FutureTask<BigInteger[]> ft = new FutureTask<>(new Callable<BigInteger[]>() {
+                public BigInteger[] call() {
+                    return factor(i);
+                }
+            });
+
+            FutureTask<BigInteger[]> f = inFlight.putIfAbsent(i, ft);
+            if (f == null) {
+                f = ft;
+                try {
+                    ft.run();
+                } finally {
+                    inFlight.remove(i, ft);
+                }
+            } else {
+                coalescedCalls.incrementAndGet();
+            }
+
+            try {
+                return f.get().clone();
+            } catch (ExecutionException e) {
+                throw launderThrowable(e.getCause());
+            }
+        }
+
+        private BigInteger extractFromRequest(ServletRequest req) {
             return null;
         }
 
+        private BigInteger[] factor(BigInteger i) {
+            return FactorEngine.factor(i);
+        }
+
         private void encodeIntoResponse(ServletResponse resp, BigInteger[] factors) {
 
         }
+
+        private void encodeError(ServletResponse resp, String errorMessage) {
+
+        }
+    }
+
+    @Immutable
+    static class LastResult {
+        private final BigInteger lastNumber;
+        private final BigInteger[] lastFactors;
+
+        LastResult(BigInteger i, BigInteger[] factors) {
+            lastNumber = i;
+            lastFactors = (factors == null) ? null : factors.clone();
+        }
+
+        BigInteger[] getFactors(BigInteger i) {
+            if (lastNumber == null || !lastNumber.equals(i))
+                return null;
+            else
+                return lastFactors.clone();
+        }
     }
 
 
@@ -1,14 +1,24 @@
 package com.concurrency_in_practice.part_1_fundamentals.chap03_sharing_objects;
 
+import com.concurrency_in_practice.common.Annotation.GuardedBy;
 import com.concurrency_in_practice.common.Annotation.Immutable;
 import com.concurrency_in_practice.common.Annotation.ThreadSafe;
+import com.concurrency_in_practice.common.FactorEncoder;
+import com.concurrency_in_practice.common.FactorEngine;
 
 import javax.servlet.Servlet;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
+import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -79,6 +89,14 @@ import java.util.Set;
  * This combination of an immutable holder object for mutable state variables related by an invariant,
  * and a volatile reference used to ensure its timely visibility,
  * allows VolatileCachedFactorizer to be thread-safe even though it does no explicit locking.
+ *
+ * The same combination scales beyond a single entry.
+ * MultiValueCachedFactorizer keeps the last N factorizations in an immutable MultiValueCache,
+ * and replaces it with a new holder only after a batch of misses, so that the copying is amortized.
+ *
+ * A holder can also carry values derived from its state, computed once when it is created.
+ * EncodedOneValueCache keeps the encoded response instead of the factors,
+ * so EncodingCachedFactorizer answers a cache hit by writing those bytes, with no copying of the factors and no encoding.
  */
 public class Sec0304_Immutability {
 
@@ -149,7 +167,7 @@ public class Sec0304_Immutability {
         }
 
         private BigInteger[] factor(BigInteger i) {
-            return null;
+            return FactorEngine.factor(i);
         }
 
         private void encoseIntoResponse(ServletResponse resp, BigInteger[] factors) {
@@ -157,6 +175,231 @@ public class Sec0304_Immutability {
         }
     }
 
+    /**
+     * Immutable Holder for Caching the Last N Numbers and their Factors.
+     *
+     * OneValueCache remembers a single number, so under a real mix of requests it almost never hits.
+     * MultiValueCache keeps the most recent N factorizations in an open-addressing table built once at construction;
+     * a lookup is a probe over final arrays, with no locking and no allocation.
+     * The factor lists are unmodifiable, so they can be handed out without the defensive copy OneValueCache makes.
+     *
+     * New entries are added by building a new holder from the old one and a batch of recent results (copy-on-write).
+     */
+    @Immutable
+    static final class MultiValueCache {
+        static final MultiValueCache EMPTY =
+                new MultiValueCache(new BigInteger[0], Collections.<List<BigInteger>>emptyList(), 0);
+
+        private final BigInteger[] numbers;          // oldest first
+        private final List<BigInteger>[] factors;
+        private final int[] index;                   // position + 1 in numbers, 0 for an empty slot
+
+        @SuppressWarnings("unchecked")
+        private MultiValueCache(BigInteger[] numbers, List<List<BigInteger>> factors, int size) {
+            this.numbers = numbers;
+            this.factors = (List<BigInteger>[]) factors.toArray(new List<?>[size]);
+            this.index = new int[Integer.highestOneBit(Math.max(size, 1) * 2) * 2];
+            for (int pos = 0; pos < size; pos++) {
+                int slot = slotFor(numbers[pos]);
+                index[slot] = pos + 1;
+            }
+        }
+
+        public List<BigInteger> getFactors(BigInteger i) {
+            int mask = index.length - 1;
+            for (int slot = spread(i.hashCode()) & mask; index[slot] != 0; slot = (slot + 1) & mask) {
+                int pos = index[slot] - 1;
+                if (numbers[pos].equals(i))
+                    return factors[pos];
+            }
+            return null;
+        }
+
+        /**
+         * Returns a holder with the given results added, keeping at most capacity of the most recent entries.
+         */
+        MultiValueCache plus(List<BigInteger> newNumbers, List<List<BigInteger>> newFactors, int capacity) {
+            // Newest first, so that the first occurrence of a number is the one that is kept
+            Map<BigInteger, List<BigInteger>> merged = new LinkedHashMap<>();
+            for (int j = newNumbers.size() - 1; j >= 0 && merged.size() < capacity; j--)
+                if (!merged.containsKey(newNumbers.get(j)))
+                    merged.put(newNumbers.get(j), newFactors.get(j));
+            for (int j = numbers.length - 1; j >= 0 && merged.size() < capacity; j--)
+                if (!merged.containsKey(numbers[j]))
+                    merged.put(numbers[j], factors[j]);
+
+            int size = merged.size();
+            BigInteger[] mergedNumbers = new BigInteger[size];
+            List<List<BigInteger>> mergedFactors = new ArrayList<>(Collections.<List<BigInteger>>nCopies(size, null));
+            int pos = size;
+            for (Map.Entry<BigInteger, List<BigInteger>> e : merged.entrySet()) {
+                mergedNumbers[--pos] = e.getKey();
+                mergedFactors.set(pos, e.getValue());
+            }
+            return new MultiValueCache(mergedNumbers, mergedFactors, size);
+        }
+
+        private int slotFor(BigInteger number) {
+            int mask = index.length - 1;
+            int slot = spread(number.hashCode()) & mask;
+            while (index[slot] != 0)
+                slot = (slot + 1) & mask;
+            return slot;
+        }
+
+        private static int spread(int h) {
+            h *= 0x9e3779b9;
+            return h ^ (h >>> 16);
+        }
+    }
+
+    /**
+     * Caching the Last N Results Using a Volatile Reference to an Immutable Holder Object.
+     *
+     * Like VolatileCachedFactorizer, the cache is an immutable holder published through a volatile field,
+     * so a hit is a volatile read and a lookup with no lock held.
+     * Copying the whole table on every miss would make bursts of misses quadratic,
+     * so new results are collected under a lock and merged into a new holder only once BATCH_SIZE of them have accumulated.
+     * A miss in the holder also looks through these pending results before factoring,
+     * so a number is factored only once even while its result waits to be merged.
+     */
+    @ThreadSafe
+    public abstract class MultiValueCachedFactorizer implements Servlet {
+        private static final int CAPACITY = 1024;
+        private static final int BATCH_SIZE = 32;
+
+        private volatile MultiValueCache cache = MultiValueCache.EMPTY;
+        private final Object pendingLock = new Object();
+        @GuardedBy("pendingLock") private final List<BigInteger> pendingNumbers = new ArrayList<>();
+        @GuardedBy("pendingLock") private final List<List<BigInteger>> pendingFactors = new ArrayList<>();
+
+        public void service(ServletRequest req, ServletResponse resp) {
+            BigInteger i = extractFromRequest(req);
+            List<BigInteger> factors = cache.getFactors(i);
+            if (factors == null)
+                factors = getPendingFactors(i);
+
+            if (factors == null) {
+                factors = Collections.unmodifiableList(Arrays.asList(factor(i)));
+                remember(i, factors);
+            }
+
+            encodeIntoResponse(resp, factors);
+        }
+
+        private List<BigInteger> getPendingFactors(BigInteger i) {
+            synchronized (pendingLock) {
+                int pos = pendingNumbers.lastIndexOf(i);
+                return (pos < 0) ? null : pendingFactors.get(pos);
+            }
+        }
+
+        private void remember(BigInteger i, List<BigInteger> factors) {
+            synchronized (pendingLock) {
+                if (pendingNumbers.contains(i))
+                    return;
+                pendingNumbers.add(i);
+                pendingFactors.add(factors);
+
+                if (pendingNumbers.size() >= BATCH_SIZE) {
+                    cache = cache.plus(pendingNumbers, pendingFactors, CAPACITY);
+                    pendingNumbers.clear();
+                    pendingFactors.clear();
+                }
+            }
+        }
+
+        private BigInteger extractFromRequest(ServletRequest req) {
+            return null;
+        }
+
+        private BigInteger[] factor(BigInteger i) {
+            return FactorEngine.factor(i);
+        }
+
+        private void encodeIntoResponse(ServletResponse resp, List<BigInteger> factors) {
+
+        }
+    }
+
+
+    /**
+     * Immutable Holder for Caching a Number and the Encoding of its Factors.
+     */
+    @Immutable
+    class EncodedOneValueCache {
+        private final BigInteger lastNumber;
+        private final byte[] encodedFactors;
+
+        public EncodedOneValueCache(BigInteger i, byte[] encoded) {
+            lastNumber = i;
+            encodedFactors = encoded;
+        }
+
+        /**
+         * Returns the cached encoding, which callers must not modify, or null if i is not the cached number.
+         */
+        public byte[] getEncodedFactors(BigInteger i) {
+            if (lastNumber == null || !lastNumber.equals(i))
+                return null;
+            else
+                return encodedFactors;
+        }
+    }
+
+    /**
+     * Caching the Last Encoded Result Using a Volatile Reference to an Immutable Holder Object.
+     */
+    @ThreadSafe
+    public abstract class EncodingCachedFactorizer implements Servlet {
+        private final FactorEncoder.Format format;
+        private volatile EncodedOneValueCache cache = new EncodedOneValueCache(null, null);
+
+        protected EncodingCachedFactorizer() {
+            this(FactorEncoder.Format.BINARY);
+        }
+
+        protected EncodingCachedFactorizer(FactorEncoder.Format format) {
+            this.format = format;
+        }
+
+        public void service(ServletRequest req, ServletResponse resp) {
+            BigInteger i = extractFromRequest(req);
+            byte[] encoded = cache.getEncodedFactors(i);
+
+            if (encoded == null) {
+                encoded = FactorEncoder.toBytes(factor(i), format);
+                cache = new EncodedOneValueCache(i, encoded);
+            }
+
+            encodeIntoResponse(resp, encoded);
+        }
+
+        private BigInteger extractFromRequest(ServletRequest req) {
+            return null;
+        }
+
+        private BigInteger[] factor(BigInteger i) {
+            return FactorEngine.factor(i);
+        }
+
+        private void encodeIntoResponse(ServletResponse resp, byte[] encoded) {
+            try {
+                FactorEncoder.writeTo(responseChannel(resp), encoded);
+            } catch (IOException e) {
+                encodeError(resp, "response not written");
+            }
+        }
+
+        private WritableByteChannel responseChannel(ServletResponse resp) {
+            return null;
+        }
+
+        private void encodeError(ServletResponse resp, String errorMessage) {
+
+        }
+    }
+
 
 
     public static void main(String[] args) {
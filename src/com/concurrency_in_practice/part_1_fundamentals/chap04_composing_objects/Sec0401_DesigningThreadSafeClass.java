@@ -3,6 +3,8 @@ package com.concurrency_in_practice.part_1_fundamentals.chap04_composing_objects
 import com.concurrency_in_practice.common.Annotation.GuardedBy;
 import com.concurrency_in_practice.common.Annotation.ThreadSafe;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * Created by sofia on 5/26/17.
  */
@@ -87,6 +89,17 @@ import com.concurrency_in_practice.common.Annotation.ThreadSafe;
  * Collection classes often exhibit a form of "split ownership",
  * in which the collection owns the state of the collection infrastructure,
  * but client code owns the objects stored in the collection.
+ *
+ * The synchronization policy of Counter is simple, but every increment competes for the same lock.
+ * When a counter only hands out unique IDs, its invariant can be split:
+ * BlockSequence keeps the shared state down to the start of the next unallocated block of IDs, in an AtomicLong,
+ * and each thread takes a whole block at a time and hands out the IDs in it from thread-confined state,
+ * so threads touch shared state once per block rather than once per ID.
+ * The price is ordering: IDs are unique, but a later ID may be returned before an earlier one,
+ * and the unused rest of a block is lost when its thread dies.
+ * Callers that need IDs in the order they were issued can ask for strict ordering,
+ * in which every ID is taken from the AtomicLong directly.
+ * In both modes, as with Counter, running out of IDs is an error rather than a silent wrap-around.
  */
 public class Sec0401_DesigningThreadSafeClass {
 
@@ -108,6 +121,64 @@ public class Sec0401_DesigningThreadSafeClass {
         }
     }
 
+    /**
+     * Sequence Generator Handing Out IDs in Per-Thread Blocks.
+     *
+     * Returns 1, 2, ... Long.MAX_VALUE, like Counter.increment, each exactly once.
+     */
+    @ThreadSafe
+    public static final class BlockSequence {
+        private final AtomicLong nextBlock = new AtomicLong(1);   // Negative once every ID has been allocated
+        private final int blockSize;
+        private final boolean strictlyOrdered;
+
+        // {next ID, IDs left in the block}
+        private final ThreadLocal<long[]> block = new ThreadLocal<long[]>() {
+            protected long[] initialValue() {
+                return new long[2];
+            }
+        };
+
+        public BlockSequence(int blockSize) {
+            this(blockSize, false);
+        }
+
+        public BlockSequence(int blockSize, boolean strictlyOrdered) {
+            if (blockSize <= 0)
+                throw new IllegalArgumentException("blockSize must be positive: " + blockSize);
+            this.blockSize = strictlyOrdered ? 1 : blockSize;
+            this.strictlyOrdered = strictlyOrdered;
+        }
+
+        public long getNext() {
+            if (strictlyOrdered)
+                return allocate(1);
+
+            long[] b = block.get();
+            if (b[1] == 0) {
+                long start = allocate(blockSize);
+                b[0] = start;
+                b[1] = Math.min(blockSize, Long.MAX_VALUE - start + 1);
+            }
+            b[1]--;
+            return b[0]++;
+        }
+
+        /**
+         * Takes up to size IDs from the shared counter and returns the first of them.
+         */
+        private long allocate(int size) {
+            while (true) {
+                long start = nextBlock.get();
+                if (start < 0)
+                    throw new IllegalStateException("counter overflow");
+                long n = Math.min(size, Long.MAX_VALUE - start + 1);
+                if (nextBlock.compareAndSet(start, start + n))
+                    return start;
+            }
+        }
+    }
+
 
 
     public static void main(String[] args) {
@@ -13,6 +13,7 @@ import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by sofia on 5/26/17.
@@ -53,6 +54,12 @@ import java.util.concurrent.atomic.AtomicInteger;
  * such as guarding lower and upper with a common lock.
  * It must also avoid publishing lower and upper to prevent clients from subverting its invariants.
  *
+ * Locking is not the only way to make related variables change together.
+ * If they fit in a single atomic variable, the compound action can be delegated after all:
+ * PackedNumberRange keeps lower and upper in one AtomicLong, checks the invariant against a snapshot of both,
+ * and publishes the new pair with compareAndSet, retrying if another thread changed the range in between.
+ * A reader gets both bounds from a single volatile read, so it can never see a range that violates the invariant.
+ *
  * If a class has compound actions, delegation alone is not a suitable approach for thread safety.
  * In these cases, the class must provide its own locking to ensure that compound actions are atomic,
  * unless the entire compound action can also be delegated to the underlying state variables.
@@ -196,6 +203,73 @@ public class Sec0403_DelegatingThreadSafety {
         }
     }
 
+    /**
+     * Number Range Class that Protects Its Invariant by Keeping Both Bounds in One AtomicLong.
+     */
+    @ThreadSafe
+    public static class PackedNumberRange {
+        // INVARIANT: lower <= upper
+        private final AtomicLong bounds = new AtomicLong(pack(0, 0));    // lower in the high half, upper in the low half
+
+        public void setLower(int i) {
+            while (true) {
+                long current = bounds.get();
+                if (i > upper(current))
+                    throw new IllegalArgumentException("can't set lower to " + i + " > upper");
+                if (bounds.compareAndSet(current, pack(i, upper(current))))
+                    return;
+            }
+        }
+
+        public void setUpper(int i) {
+            while (true) {
+                long current = bounds.get();
+                if (i < lower(current))
+                    throw new IllegalArgumentException("can't set upper to " + i + " < lower");
+                if (bounds.compareAndSet(current, pack(lower(current), i)))
+                    return;
+            }
+        }
+
+        public boolean isInRange(int i) {
+            long current = bounds.get();
+            return (i >= lower(current) && i <= upper(current));
+        }
+
+        /**
+         * Checks all the values against the same snapshot of the range.
+         */
+        public boolean[] isInRange(int[] values) {
+            boolean[] results = new boolean[values.length];
+            isInRange(values, results);
+            return results;
+        }
+
+        /**
+         * Like isInRange(int[]), but into a caller-supplied array, so it does not allocate.
+         */
+        public void isInRange(int[] values, boolean[] results) {
+            long current = bounds.get();
+            int lower = lower(current);
+            // lower <= i <= upper  iff  i - lower <= upper - lower, compared as unsigned ints; no branch in the loop
+            int width = (upper(current) - lower) ^ Integer.MIN_VALUE;
+            for (int k = 0; k < values.length; k++)
+                results[k] = ((values[k] - lower) ^ Integer.MIN_VALUE) <= width;
+        }
+
+        private static long pack(int lower, int upper) {
+            return ((long) lower << 32) | (upper & 0xFFFFFFFFL);
+        }
+
+        private static int lower(long bounds) {
+            return (int) (bounds >> 32);
+        }
+
+        private static int upper(long bounds) {
+            return (int) bounds;
+        }
+    }
+
     /**
      * 4.3.5. Example: Vehicle Tracker that Publishes Its State
      */
@@ -264,6 +338,7 @@ public class Sec0403_DelegatingThreadSafety {
         DelegatingVehicleTracker delegatingVehicleTracker = new DelegatingVehicleTracker(null);
         VisualComponent visualComponent = new VisualComponent();
         NumberRange numberRange = new NumberRange();
+        PackedNumberRange packedNumberRange = new PackedNumberRange();
         SafePoint safePoint = new SafePoint(0, 0);
         PublishingVehicleTracker publishingVehicleTracker = new PublishingVehicleTracker(null);
     }
@@ -1,15 +1,48 @@
 package com.concurrency_in_practice.part_1_fundamentals.chap05_building_blocks;
 
+import com.concurrency_in_practice.common.Annotation.GuardedBy;
+import com.concurrency_in_practice.common.Annotation.Immutable;
+import com.concurrency_in_practice.common.Annotation.ThreadSafe;
+import com.concurrency_in_practice.common.FactorEngine;
+import com.concurrency_in_practice.part_0_introduction.chap01_introduction.Sec0103_RisksOfThreads;
+import com.concurrency_in_practice.part_1_fundamentals.chap04_composing_objects.Sec0401_DesigningThreadSafeClass;
+import com.concurrency_in_practice.part_1_fundamentals.chap05_building_blocks.Sec0506_BuildingResultCache.LatencyHistogram;
+
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.BrokenBarrierException;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.CyclicBarrier;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
 
 /**
  * Created by sofia on 5/27/17.
@@ -71,6 +104,23 @@ import java.util.concurrent.Semaphore;
  * Using a starting gate allows the master thread to release all the worker threads at once,
  * and the ending gate allows the master thread to wait for the last thread to finish rather than waiting sequentially for each thread to finish.
  *
+ * A single elapsed time from TestHarness is a poor measurement, though.
+ * It includes starting the threads, it may be taken before the JIT has compiled the task,
+ * and it gives no idea of how much it would vary from one run to the next.
+ * BenchmarkHarness keeps the same gates but reuses a pool of worker threads,
+ * discards a number of warm-up iterations, and measures several iterations,
+ * recording how long each task run takes in a histogram.
+ * It reports throughput with a confidence interval, and the mean and percentiles of task latency,
+ * as CSV or JSON.
+ *
+ * Whether a class scales is a question about many thread counts rather than one.
+ * BenchmarkHarness.sweep runs the same task at 1, 2, 4, ... threads, up to twice the number of processors,
+ * and fits Amdahl's law and the Universal Scalability Law to the speedups,
+ * giving the serial fraction that limits scaling and, for the USL, the cost of keeping shared data coherent
+ * that makes throughput drop when threads are added.
+ * It also flags the thread count at which throughput stops rising.
+ * Its main method sweeps Sequence, Counter, BlockSequence and FactorEngine.
+ *
  * 5.5.2. Future Task
  *
  * FutureTask also acts like a latch.
@@ -92,6 +142,14 @@ import java.util.concurrent.Semaphore;
  * Preloader in Listing 5.12 uses FutureTask to perform an expensive computation whose results are needed later;
  * by starting the computation early, you reduce the time you would have to wait later when you actually need the results.
  *
+ * A service usually preloads more than one data set, and some of them are built from others.
+ * Starting a thread per Preloader runs everything at once, ignoring both the dependencies and the number of processors;
+ * loading them one after another costs the sum of all the load times.
+ * PreloadManager takes the loaders together with their dependencies, runs them on a bounded pool,
+ * and starts each load as soon as the loads it depends on have completed,
+ * so a cold start takes about as long as the longest chain of dependent loads.
+ * Each result is available as a CompletableFuture, or through get, which unwraps a DataLoadException like Preloader.get.
+ *
  * 5.5.3. Semaphores
  *
  * Counting semaphores are used to control the number of activities that can access a certain resource
@@ -119,6 +177,13 @@ import java.util.concurrent.Semaphore;
  * If the underlying add operation does not actually add anything, it releases the permit immediately.
  * Similarly, a successful remove operation releases a permit, enabling more elements to be added.
  *
+ * BoundedHashSet still serializes every operation on the lock of its synchronized set.
+ * WeightedBoundedHashSet uses a concurrent set instead, and keeps the space in use in an AtomicLong updated with compareAndSet,
+ * which also lets elements count for different amounts against the bound.
+ * A thread takes a lock only when there is no room and it has to wait for some;
+ * tryAdd never waits, and add can wait with or without a timeout.
+ * A fair set hands out freed space to waiting threads in arrival order, at some cost in throughput.
+ *
  * 5.5.4. Barriers
  *
  * Latches are single-use objects; once a latch enters the terminal state, it cannot be reset.
@@ -164,6 +229,14 @@ import java.util.concurrent.Semaphore;
  * When all worker threads have reached the barrier, the barrier action commits the new values to the data model.
  * After the barrier action runs, the worker threads are released to compute the next step of the calculation.
  *
+ * The barrier makes every step as slow as the slowest thread, although each part of the board only depends on the parts next to it.
+ * TiledCellularAutomata cuts the board into many small tiles and runs them on a work-stealing ForkJoinPool,
+ * replacing the barrier with a Phaser per tile that counts the generations it has completed.
+ * A tile moves on to the next generation as soon as its two neighbors have caught up with it,
+ * having copied their edge rows into its halo rows, so a delay holds up only the tiles nearby.
+ * Each tile keeps two generations, packed one bit per cell, which cuts memory traffic
+ * and lets a single long operation update 64 cells at once.
+ *
  * Another form of barrier is Exchanger, a two-party barrier in which the parties exchange data at the barrier point.
  * Exchanges are useful when the parties perform asymmetric activities,
  * for example, when one thread fills a buffer with data and the other thread consumes the data from the buffer;
@@ -221,6 +294,393 @@ public class Sec0505_Synchronizers {
         }
     }
 
+    /**
+     * Benchmark Harness Built on the Start and End Gates of TestHarness.
+     *
+     * Workers are pooled and reused across iterations, so thread start-up is not measured.
+     * Warm-up iterations run the same code as measured ones, to get it compiled, and are then discarded.
+     * Each measured iteration records its wall-clock time, and every task run records its own latency into a histogram;
+     * timing each run adds a pair of nanoTime calls to it, which matters only for tasks of well under a microsecond.
+     */
+    @ThreadSafe
+    public static class BenchmarkHarness {
+
+        private final int nThreads;
+        private final ExecutorService workers;
+
+        public BenchmarkHarness(int nThreads) {
+            this.nThreads = nThreads;
+            this.workers = Executors.newFixedThreadPool(nThreads);
+        }
+
+        /**
+         * Runs warmupIterations and then measuredIterations iterations,
+         * in each of which every one of the nThreads workers runs task tasksPerThread times.
+         */
+        public Result run(Runnable task, int tasksPerThread, int warmupIterations, int measuredIterations)
+                throws InterruptedException {
+            for (int i = 0; i < warmupIterations; i++)
+                runIteration(task, tasksPerThread, null, null);
+
+            LatencyHistogram latency = new LatencyHistogram();
+            LongAdder latencySum = new LongAdder();
+            long[] iterationNanos = new long[measuredIterations];
+            for (int i = 0; i < measuredIterations; i++)
+                iterationNanos[i] = runIteration(task, tasksPerThread, latency, latencySum);
+
+            return new Result(nThreads, (long) nThreads * tasksPerThread, iterationNanos, latency.counts(), latencySum.sum());
+        }
+
+        /**
+         * Like TestHarness.timeTasks, but on the pooled workers and without warm-up.
+         */
+        public long timeTasks(Runnable task) throws InterruptedException {
+            return runIteration(task, 1, null, null);
+        }
+
+        public void shutdown() {
+            workers.shutdown();
+        }
+
+        /**
+         * Runs task at 1, 2, 4, ... threads, up to twice the number of processors, each on a harness of its own.
+         */
+        public static SweepResult sweep(Runnable task, int tasksPerThread, int warmupIterations, int measuredIterations)
+                throws InterruptedException {
+            int maxThreads = 2 * Runtime.getRuntime().availableProcessors();
+            List<Result> results = new ArrayList<>();
+            for (int n = 1; n <= maxThreads; n = (n * 2 > maxThreads && n < maxThreads) ? maxThreads : n * 2) {
+                BenchmarkHarness harness = new BenchmarkHarness(n);
+                try {
+                    results.add(harness.run(task, tasksPerThread, warmupIterations, measuredIterations));
+                } finally {
+                    harness.shutdown();
+                }
+            }
+            return new SweepResult(results);
+        }
+
+        /**
+         * Sweeps the ID generators and the factorization engine, printing each sweep as CSV followed by its fitted models.
+         */
+        public static void main(String[] args) throws InterruptedException {
+            final Sec0103_RisksOfThreads.Sequence sequence = new Sec0103_RisksOfThreads.Sequence();
+            final Sec0401_DesigningThreadSafeClass.Counter counter = new Sec0401_DesigningThreadSafeClass().new Counter();
+            final Sec0401_DesigningThreadSafeClass.BlockSequence blockSequence = new Sec0401_DesigningThreadSafeClass.BlockSequence(1024);
+            final BigInteger semiprime = BigInteger.valueOf(2147483647L).multiply(BigInteger.valueOf(2147483629L));
+
+            Map<String, Runnable> tasks = new LinkedHashMap<>();
+            tasks.put("Sequence", new Runnable() {
+                public void run() {
+                    sequence.getNext();
+                }
+            });
+            tasks.put("Counter", new Runnable() {
+                public void run() {
+                    counter.increment();
+                }
+            });
+            tasks.put("BlockSequence", new Runnable() {
+                public void run() {
+                    blockSequence.getNext();
+                }
+            });
+            tasks.put("FactorEngine", new Runnable() {
+                public void run() {
+                    FactorEngine.factor(semiprime);
+                }
+            });
+
+            for (Map.Entry<String, Runnable> e : tasks.entrySet()) {
+                int tasksPerThread = e.getKey().equals("FactorEngine") ? 20 : 100000;
+                SweepResult sweep = sweep(e.getValue(), tasksPerThread, 5, 10);
+                System.out.println("# " + e.getKey());
+                System.out.print(sweep.toCsv());
+                System.out.println("# " + sweep.toJson());
+            }
+        }
+
+        private long runIteration(final Runnable task, final int tasksPerThread,
+                                  final LatencyHistogram latency, final LongAdder latencySum)
+                throws InterruptedException {
+            final CountDownLatch startGate = new CountDownLatch(1);
+            final CountDownLatch endGate = new CountDownLatch(nThreads);
+
+            for (int i = 0; i < nThreads; i++) {
+                workers.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            startGate.await();
+                            try {
+                                long sum = 0;
+                                for (int n = 0; n < tasksPerThread; n++) {
+                                    long start = System.nanoTime();
+                                    task.run();
+                                    long elapsed = System.nanoTime() - start;
+                                    if (latency != null) {
+                                        latency.record(elapsed);
+                                        sum += elapsed;
+                                    }
+                                }
+                                if (latencySum != null)
+                                    latencySum.add(sum);
+                            } finally {
+                                endGate.countDown();
+                            }
+                        } catch (InterruptedException ignored) {
+
+                        }
+                    }
+                });
+            }
+
+            long start = System.nanoTime();
+            startGate.countDown();
+            endGate.await();
+            long end = System.nanoTime();
+            return end - start;
+        }
+
+        /**
+         * The measurements of one run, with their summary statistics.
+         */
+        @Immutable
+        public static class Result {
+            private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+            // Two-sided 95% quantiles of Student's t distribution, for 1 to 30 degrees of freedom
+            private static final double[] T_95 = {
+                    12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306, 2.262, 2.228,
+                    2.201, 2.179, 2.160, 2.145, 2.131, 2.120, 2.110, 2.101, 2.093, 2.086,
+                    2.080, 2.074, 2.069, 2.064, 2.060, 2.056, 2.052, 2.048, 2.045, 2.042 };
+
+            private final int nThreads;
+            private final long tasksPerIteration;
+            private final long[] iterationNanos;
+            private final long[] latencyCounts;
+            private final long latencySumNanos;
+
+            Result(int nThreads, long tasksPerIteration, long[] iterationNanos, long[] latencyCounts, long latencySumNanos) {
+                this.nThreads = nThreads;
+                this.tasksPerIteration = tasksPerIteration;
+                this.iterationNanos = iterationNanos;
+                this.latencyCounts = latencyCounts;
+                this.latencySumNanos = latencySumNanos;
+            }
+
+            public int getThreads() {
+                return nThreads;
+            }
+
+            /**
+             * Mean over the measured iterations of the tasks completed per second.
+             */
+            public double getThroughput() {
+                double sum = 0;
+                for (long nanos : iterationNanos)
+                    sum += throughputOf(nanos);
+                return sum / iterationNanos.length;
+            }
+
+            /**
+             * Half-width of the 95% confidence interval of getThroughput, treating iterations as independent samples;
+             * NaN with fewer than two measured iterations.
+             */
+            public double getThroughputConfidence95() {
+                int n = iterationNanos.length;
+                if (n < 2)
+                    return Double.NaN;
+                double mean = getThroughput();
+                double squares = 0;
+                for (long nanos : iterationNanos) {
+                    double d = throughputOf(nanos) - mean;
+                    squares += d * d;
+                }
+                double standardError = Math.sqrt(squares / (n - 1) / n);
+                return tQuantile95(n - 1) * standardError;
+            }
+
+            public double getMeanLatencyNanos() {
+                long count = 0;
+                for (long c : latencyCounts)
+                    count += c;
+                return (count == 0) ? 0 : (double) latencySumNanos / count;
+            }
+
+            /**
+             * Task latency at the given percentile, overstated by at most 1/16 by the histogram's resolution.
+             */
+            public long getLatencyAtPercentile(double percentile) {
+                return LatencyHistogram.valueAtPercentile(latencyCounts, percentile);
+            }
+
+            public static String csvHeader() {
+                return "threads,iterations,tasksPerIteration,throughput,throughputCi95,meanNanos,p50Nanos,p90Nanos,p99Nanos,p999Nanos";
+            }
+
+            public String toCsv() {
+                StringBuilder sb = new StringBuilder()
+                        .append(nThreads).append(',')
+                        .append(iterationNanos.length).append(',')
+                        .append(tasksPerIteration).append(',')
+                        .append(String.format(Locale.ROOT, "%.1f", getThroughput())).append(',')
+                        .append(String.format(Locale.ROOT, "%.1f", getThroughputConfidence95())).append(',')
+                        .append(String.format(Locale.ROOT, "%.1f", getMeanLatencyNanos()));
+                for (double p : PERCENTILES)
+                    sb.append(',').append(getLatencyAtPercentile(p));
+                return sb.toString();
+            }
+
+            public String toJson() {
+                StringBuilder sb = new StringBuilder("{")
+                        .append("\"threads\":").append(nThreads)
+                        .append(",\"iterations\":").append(iterationNanos.length)
+                        .append(",\"tasksPerIteration\":").append(tasksPerIteration)
+                        .append(",\"throughput\":").append(jsonNumber(getThroughput()))
+                        .append(",\"throughputCi95\":").append(jsonNumber(getThroughputConfidence95()))
+                        .append(",\"meanNanos\":").append(jsonNumber(getMeanLatencyNanos()))
+                        .append(",\"percentileNanos\":{");
+                for (int i = 0; i < PERCENTILES.length; i++) {
+                    if (i > 0)
+                        sb.append(',');
+                    sb.append("\"p").append(percentileName(PERCENTILES[i])).append("\":").append(getLatencyAtPercentile(PERCENTILES[i]));
+                }
+                sb.append("},\"iterationNanos\":[");
+                for (int i = 0; i < iterationNanos.length; i++) {
+                    if (i > 0)
+                        sb.append(',');
+                    sb.append(iterationNanos[i]);
+                }
+                return sb.append("]}").toString();
+            }
+
+            private double throughputOf(long nanos) {
+                return tasksPerIteration * 1e9 / Math.max(1, nanos);
+            }
+
+            private static double tQuantile95(int degreesOfFreedom) {
+                return (degreesOfFreedom <= T_95.length) ? T_95[degreesOfFreedom - 1] : 1.960;
+            }
+
+            private static String percentileName(double percentile) {
+                return (percentile == Math.rint(percentile)) ? Long.toString((long) percentile) : Double.toString(percentile);
+            }
+
+            private static String jsonNumber(double d) {
+                return (Double.isNaN(d) || Double.isInfinite(d)) ? "null" : String.format(Locale.ROOT, "%.1f", d);
+            }
+        }
+
+        /**
+         * Results of a sweep over thread counts, with the scalability models fitted to them.
+         *
+         * Speedup at n threads is throughput at n divided by throughput at one thread.
+         * Amdahl's law models it as n / (1 + s(n - 1)) for a serial fraction s;
+         * the Universal Scalability Law adds a coherency term, n / (1 + s(n - 1) + k n(n - 1)),
+         * which lets it model throughput that falls as threads are added.
+         * Both are fitted by least squares on n / speedup - 1, in which they are linear.
+         */
+        @Immutable
+        public static class SweepResult {
+            private final List<Result> results;
+
+            SweepResult(List<Result> results) {
+                this.results = Collections.unmodifiableList(new ArrayList<>(results));
+            }
+
+            public List<Result> getResults() {
+                return results;
+            }
+
+            public double getSpeedup(int index) {
+                return results.get(index).getThroughput() / results.get(0).getThroughput();
+            }
+
+            public double getAmdahlSerialFraction() {
+                double xy = 0, xx = 0;
+                for (int i = 0; i < results.size(); i++) {
+                    int n = results.get(i).getThreads();
+                    xy += (n - 1) * (n / getSpeedup(i) - 1);
+                    xx += (double) (n - 1) * (n - 1);
+                }
+                return (xx == 0) ? 0 : xy / xx;
+            }
+
+            /**
+             * The USL contention and coherency coefficients {s, k}.
+             */
+            public double[] getUslCoefficients() {
+                double aa = 0, ab = 0, bb = 0, ay = 0, by = 0;
+                for (int i = 0; i < results.size(); i++) {
+                    int n = results.get(i).getThreads();
+                    double a = n - 1;
+                    double b = (double) n * (n - 1);
+                    double y = n / getSpeedup(i) - 1;
+                    aa += a * a;
+                    ab += a * b;
+                    bb += b * b;
+                    ay += a * y;
+                    by += b * y;
+                }
+                double determinant = aa * bb - ab * ab;
+                if (determinant == 0)
+                    return new double[] { getAmdahlSerialFraction(), 0 };
+                return new double[] { (ay * bb - by * ab) / determinant, (aa * by - ab * ay) / determinant };
+            }
+
+            /**
+             * The thread count after which throughput stops increasing:
+             * the first one at which adding threads does not raise throughput by more than the noise
+             * (the combined 95% confidence intervals), or the largest one if throughput rises throughout.
+             */
+            public int getSaturationThreads() {
+                for (int i = 0; i + 1 < results.size(); i++) {
+                    Result current = results.get(i);
+                    Result next = results.get(i + 1);
+                    double noise = Math.hypot(orZero(current.getThroughputConfidence95()), orZero(next.getThroughputConfidence95()));
+                    if (next.getThroughput() - current.getThroughput() <= noise)
+                        return current.getThreads();
+                }
+                return results.get(results.size() - 1).getThreads();
+            }
+
+            public String toCsv() {
+                StringBuilder sb = new StringBuilder(Result.csvHeader()).append(",speedup,saturated\n");
+                int saturation = getSaturationThreads();
+                for (int i = 0; i < results.size(); i++) {
+                    sb.append(results.get(i).toCsv())
+                            .append(',').append(String.format(Locale.ROOT, "%.3f", getSpeedup(i)))
+                            .append(',').append(results.get(i).getThreads() == saturation)
+                            .append('\n');
+                }
+                return sb.toString();
+            }
+
+            public String toJson() {
+                double[] usl = getUslCoefficients();
+                StringBuilder sb = new StringBuilder("{")
+                        .append("\"amdahlSerialFraction\":").append(String.format(Locale.ROOT, "%.5f", getAmdahlSerialFraction()))
+                        .append(",\"uslContention\":").append(String.format(Locale.ROOT, "%.5f", usl[0]))
+                        .append(",\"uslCoherency\":").append(String.format(Locale.ROOT, "%.6f", usl[1]))
+                        .append(",\"saturationThreads\":").append(getSaturationThreads())
+                        .append(",\"results\":[");
+                for (int i = 0; i < results.size(); i++) {
+                    if (i > 0)
+                        sb.append(',');
+                    String json = results.get(i).toJson();
+                    sb.append(json, 0, json.length() - 1)
+                            .append(",\"speedup\":").append(String.format(Locale.ROOT, "%.3f", getSpeedup(i)))
+                            .append('}');
+                }
+                return sb.append("]}").toString();
+            }
+
+            private static double orZero(double d) {
+                return Double.isNaN(d) ? 0 : d;
+            }
+        }
+    }
+
     /**
      * 5.5.2. FutureTask
      */
@@ -258,6 +718,141 @@ public class Sec0505_Synchronizers {
         }
     }
 
+    /**
+     * Preloading a Graph of Interdependent Data Sets on a Bounded Pool.
+     *
+     * Each loader is registered under a name, with the names of the loaders whose results it needs.
+     * start checks that the dependencies form a DAG and chains the loads as CompletableFutures:
+     * a load is queued on the pool as soon as its dependencies have completed,
+     * so independent loads run in parallel and no pool thread is ever blocked waiting for another load.
+     * If a load fails, every load that depends on it fails with the same exception.
+     */
+    @ThreadSafe
+    public static class PreloadManager {
+
+        public interface Loader<T> {
+            /**
+             * Loads the data set, given the results of its dependencies keyed by name.
+             */
+            T load(Map<String, Object> dependencies) throws DataLoadException;
+        }
+
+        private static class Node {
+            final Loader<?> loader;
+            final String[] dependsOn;
+
+            Node(Loader<?> loader, String[] dependsOn) {
+                this.loader = loader;
+                this.dependsOn = dependsOn;
+            }
+        }
+
+        private final ExecutorService executor;
+        @GuardedBy("this") private final Map<String, Node> nodes = new LinkedHashMap<>();
+        @GuardedBy("this") private final Map<String, CompletableFuture<Object>> futures = new HashMap<>();
+        @GuardedBy("this") private boolean started;
+
+        public PreloadManager(int nThreads) {
+            this.executor = Executors.newFixedThreadPool(nThreads);
+        }
+
+        public synchronized void register(String name, Loader<?> loader, String... dependsOn) {
+            if (started)
+                throw new IllegalStateException("already started");
+            if (nodes.containsKey(name))
+                throw new IllegalArgumentException("duplicate loader: " + name);
+            nodes.put(name, new Node(loader, dependsOn.clone()));
+        }
+
+        /**
+         * Starts every load, dependencies first.
+         *
+         * @throws IllegalArgumentException if a loader depends on an unregistered name or the dependencies form a cycle
+         */
+        public synchronized void start() {
+            if (started)
+                throw new IllegalStateException("already started");
+
+            Map<String, Integer> state = new HashMap<>();   // absent: unvisited, 1: on the current path, 2: done
+            List<String> order = new ArrayList<>();
+            for (String name : nodes.keySet())
+                visit(name, state, order);
+
+            for (String name : order)
+                futures.put(name, startLoad(nodes.get(name)));
+            started = true;
+        }
+
+        /**
+         * The result of the named loader; completing the returned future has no effect on the loads.
+         */
+        @SuppressWarnings("unchecked")
+        public synchronized <T> CompletableFuture<T> getFuture(String name) {
+            if (!started)
+                throw new IllegalStateException("not started");
+            CompletableFuture<Object> future = futures.get(name);
+            if (future == null)
+                throw new IllegalArgumentException("no such loader: " + name);
+            return (CompletableFuture<T>) future.copy();
+        }
+
+        /**
+         * Waits for the named loader, unwrapping its failure as Preloader.get does.
+         */
+        public <T> T get(String name) throws DataLoadException, InterruptedException {
+            try {
+                return this.<T>getFuture(name).get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof DataLoadException)
+                    throw (DataLoadException) cause;
+                else
+                    throw launderThrowable(cause);
+            }
+        }
+
+        public void shutdown() {
+            executor.shutdown();
+        }
+
+        // Called with the lock held
+        private void visit(String name, Map<String, Integer> state, List<String> order) {
+            Integer s = state.get(name);
+            if (s != null) {
+                if (s == 1)
+                    throw new IllegalArgumentException("dependency cycle through " + name);
+                return;
+            }
+            Node node = nodes.get(name);
+            if (node == null)
+                throw new IllegalArgumentException("no such loader: " + name);
+
+            state.put(name, 1);
+            for (String dependency : node.dependsOn)
+                visit(dependency, state, order);
+            state.put(name, 2);
+            order.add(name);
+        }
+
+        // Called with the lock held, after the dependencies of node have been started
+        private CompletableFuture<Object> startLoad(Node node) {
+            final Loader<?> loader = node.loader;
+            final String[] names = node.dependsOn;
+            final CompletableFuture<?>[] dependencies = new CompletableFuture<?>[names.length];
+            for (int i = 0; i < names.length; i++)
+                dependencies[i] = futures.get(names[i]);
+
+            return CompletableFuture.allOf(dependencies).thenApplyAsync(new Function<Void, Object>() {
+                public Object apply(Void ignored) {
+                    Map<String, Object> values = new HashMap<>();
+                    for (int i = 0; i < names.length; i++)
+                        values.put(names[i], dependencies[i].join());
+                    return loader.load(values);
+                }
+            }, executor);
+        }
+    }
+
     /**
      * Listing 5.13. Coercing an Unchecked Throwable to a RuntimeException.
      */
@@ -320,6 +915,172 @@ public class Sec0505_Synchronizers {
         }
     }
 
+    /**
+     * Bounding a Concurrent Set by Total Weight, with a Lock Only for Threads that Have to Wait.
+     */
+    @ThreadSafe
+    public static class WeightedBoundedHashSet<T> {
+
+        public interface Weigher<T> {
+            /**
+             * The weight of an element; it must not change while the element is in the set.
+             */
+            int weigh(T element);
+        }
+
+        private final Set<T> set = ConcurrentHashMap.newKeySet();
+        private final long bound;
+        private final Weigher<? super T> weigher;
+        private final boolean fair;
+        private final AtomicLong weight = new AtomicLong();
+        private final AtomicInteger waiters = new AtomicInteger();
+        private final ReentrantLock lock;
+        private final Condition spaceFreed;
+        @GuardedBy("lock") private final Deque<Thread> queue = new ArrayDeque<>();     // Used only when fair
+
+        public WeightedBoundedHashSet(int bound) {
+            this(bound, new Weigher<Object>() {
+                public int weigh(Object element) {
+                    return 1;
+                }
+            }, false);
+        }
+
+        /**
+         * When fair, threads waiting for room get it in arrival order,
+         * and an add that would not have to wait still fails or waits while others are waiting.
+         */
+        public WeightedBoundedHashSet(long bound, Weigher<? super T> weigher, boolean fair) {
+            this.bound = bound;
+            this.weigher = weigher;
+            this.fair = fair;
+            this.lock = new ReentrantLock(fair);
+            this.spaceFreed = lock.newCondition();
+        }
+
+        /**
+         * Adds o if there is room for it now; never blocks.
+         */
+        public boolean tryAdd(T o) {
+            int w = weightOf(o);
+            if (set.contains(o))
+                return false;
+            if ((fair && waiters.get() > 0) || !tryReserve(w))
+                return false;
+            return addReserved(o, w);
+        }
+
+        public boolean add(T o) throws InterruptedException {
+            return add(o, -1);
+        }
+
+        /**
+         * Adds o, waiting up to timeout for room; returns false if o was already present or the time ran out.
+         */
+        public boolean add(T o, long timeout, TimeUnit unit) throws InterruptedException {
+            return add(o, Math.max(0, unit.toNanos(timeout)));
+        }
+
+        public boolean remove(Object o) {
+            boolean wasRemoved = set.remove(o);
+            if (wasRemoved) {
+                @SuppressWarnings("unchecked") T element = (T) o;
+                release(weigher.weigh(element));
+            }
+            return wasRemoved;
+        }
+
+        public boolean contains(Object o) {
+            return set.contains(o);
+        }
+
+        public int size() {
+            return set.size();
+        }
+
+        public long weight() {
+            return weight.get();
+        }
+
+        // A negative timeout waits indefinitely
+        private boolean add(T o, long timeoutNanos) throws InterruptedException {
+            int w = weightOf(o);
+            if (set.contains(o))
+                return false;
+            if (!(fair && waiters.get() > 0) && tryReserve(w))
+                return addReserved(o, w);
+            return awaitReservation(w, timeoutNanos) && addReserved(o, w);
+        }
+
+        private int weightOf(T o) {
+            int w = weigher.weigh(o);
+            if (w < 0 || w > bound)
+                throw new IllegalArgumentException("weight " + w + " is not within 0.." + bound);
+            return w;
+        }
+
+        private boolean tryReserve(int w) {
+            while (true) {
+                long current = weight.get();
+                if (current + w > bound)
+                    return false;
+                if (weight.compareAndSet(current, current + w))
+                    return true;
+            }
+        }
+
+        private boolean addReserved(T o, int w) {
+            boolean wasAdded = set.add(o);
+            if (!wasAdded)
+                release(w);
+            return wasAdded;
+        }
+
+        private void release(int w) {
+            weight.addAndGet(-w);
+            // A waiter registers before its last tryReserve, so either it sees this release or we see it
+            if (waiters.get() > 0) {
+                lock.lock();
+                try {
+                    spaceFreed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        private boolean awaitReservation(int w, long timeoutNanos) throws InterruptedException {
+            Thread current = Thread.currentThread();
+            lock.lockInterruptibly();
+            waiters.incrementAndGet();
+            if (fair)
+                queue.addLast(current);
+            try {
+                long nanos = timeoutNanos;
+                while (true) {
+                    if ((!fair || queue.peekFirst() == current) && tryReserve(w))
+                        return true;
+                    if (timeoutNanos < 0)
+                        spaceFreed.await();
+                    else if (nanos <= 0)
+                        return false;
+                    else
+                        nanos = spaceFreed.awaitNanos(nanos);
+                }
+            } finally {
+                if (fair) {
+                    boolean wasFirst = queue.peekFirst() == current;
+                    queue.remove(current);
+                    // The next thread in line may be able to proceed now
+                    if (wasFirst && !queue.isEmpty())
+                        spaceFreed.signalAll();
+                }
+                waiters.decrementAndGet();
+                lock.unlock();
+            }
+        }
+    }
+
     /**
      * 5.5.4. Barriers
      */
@@ -390,13 +1151,283 @@ public class Sec0505_Synchronizers {
         }
     }
 
+    /**
+     * Cellular Automaton on Bit-packed, Double-buffered Tiles Synchronized Only with Their Neighbors.
+     *
+     * Runs any Life-like rule, such as "B3/S23" for Conway's Life, on a width x height board; cells outside it are dead.
+     * Each row is packed 64 cells to a long, and all 64 cells of a word are computed at once with bitwise adders.
+     * The board is cut into bands of rows, each small enough to stay in cache,
+     * holding two generations plus a copy (halo) of the adjacent row of each neighboring band.
+     *
+     * A tile's Phaser counts the generations it has completed.
+     * A tile may compute generation g + 1 once it and both its neighbors have completed generation g:
+     * by then they have published their edge rows of generation g into its halos,
+     * and have finished reading the halos of generation g - 1 that it is about to overwrite.
+     * Whichever tile completes last schedules the ones that became ready,
+     * so tiles advance at their own pace, at most one generation apart from their neighbors,
+     * and a slow tile delays only the tiles around it.
+     */
+    @ThreadSafe
+    public static class TiledCellularAutomata {
+
+        private static final int TILE_BYTES = 128 * 1024;   // Both generations of a tile fit in a typical L2 cache
+
+        private final int width;
+        private final int height;
+        private final int words;                // longs per row
+        private final long lastWordMask;        // cells of the last word that are on the board
+        private final int birth;                // bit n set: a dead cell with n live neighbors comes alive
+        private final int survival;             // bit n set: a live cell with n live neighbors stays alive
+        private final ForkJoinPool pool;
+        private final Tile[] tiles;
+
+        private volatile int targetGeneration;
+        private volatile CountDownLatch done;
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        public TiledCellularAutomata(int width, int height, String rule, ForkJoinPool pool) {
+            if (width <= 0 || height <= 0)
+                throw new IllegalArgumentException("empty board: " + width + " x " + height);
+            this.width = width;
+            this.height = height;
+            this.words = (width + 63) / 64;
+            this.lastWordMask = (width % 64 == 0) ? -1L : (1L << (width % 64)) - 1;
+            this.birth = parseCounts(rule, 'B');
+            this.survival = parseCounts(rule, 'S');
+            this.pool = pool;
+
+            int rowsPerTile = Math.max(1, TILE_BYTES / (2 * 8 * words));
+            int minTiles = 4 * pool.getParallelism();     // Enough tiles for work stealing to even out the load
+            rowsPerTile = Math.max(1, Math.min(rowsPerTile, (height + minTiles - 1) / minTiles));
+            this.tiles = new Tile[(height + rowsPerTile - 1) / rowsPerTile];
+            for (int t = 0; t < tiles.length; t++)
+                tiles[t] = new Tile(t, t * rowsPerTile, Math.min(rowsPerTile, height - t * rowsPerTile));
+        }
+
+        /**
+         * Sets a cell; must not be called while run is in progress.
+         */
+        public void set(int x, int y, boolean alive) {
+            Tile tile = tileOf(x, y);
+            long[] cells = tile.current();
+            int index = (y - tile.firstRow + 1) * words + x / 64;
+            if (alive)
+                cells[index] |= 1L << (x % 64);
+            else
+                cells[index] &= ~(1L << (x % 64));
+        }
+
+        public boolean get(int x, int y) {
+            Tile tile = tileOf(x, y);
+            return (tile.current()[(y - tile.firstRow + 1) * words + x / 64] & (1L << (x % 64))) != 0;
+        }
+
+        public long population() {
+            long population = 0;
+            for (Tile tile : tiles) {
+                long[] cells = tile.current();
+                for (int i = words; i < (tile.rows + 1) * words; i++)
+                    population += Long.bitCount(cells[i]);
+            }
+            return population;
+        }
+
+        public int getTileCount() {
+            return tiles.length;
+        }
+
+        /**
+         * Advances the whole board by the given number of generations.
+         */
+        public void run(int generations) throws InterruptedException {
+            int generation = tiles[0].phaser.getPhase();
+            for (Tile tile : tiles)
+                tile.publishEdges(tile.current(), generation);
+
+            targetGeneration = generation + generations;
+            done = new CountDownLatch(tiles.length);
+            if (generations <= 0)
+                return;
+            for (Tile tile : tiles)
+                trySchedule(tile.index);
+            done.await();
+
+            Throwable t = failure.getAndSet(null);
+            if (t != null)
+                throw launderThrowable(t);
+        }
+
+        private void trySchedule(int t) {
+            if (t < 0 || t >= tiles.length)
+                return;
+            Tile tile = tiles[t];
+            int g = tile.phaser.getPhase();
+            if (g >= targetGeneration || tile.claimed.get() != g)
+                return;
+            if ((t > 0 && tiles[t - 1].phaser.getPhase() < g) || (t + 1 < tiles.length && tiles[t + 1].phaser.getPhase() < g))
+                return;
+            if (tile.claimed.compareAndSet(g, g + 1)) {
+                Step step = new Step(tile);
+                if (ForkJoinTask.getPool() == pool)
+                    step.fork();
+                else
+                    pool.execute(step);
+            }
+        }
+
+        private class Step extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+
+            private final Tile tile;
+
+            Step(Tile tile) {
+                this.tile = tile;
+            }
+
+            protected void compute() {
+                try {
+                    int g = tile.phaser.getPhase();
+                    long[] next = tile.buffers[(g + 1) & 1];
+                    tile.computeNext(tile.buffers[g & 1], next);
+                    tile.publishEdges(next, g + 1);
+                    if (tile.phaser.arrive() + 1 == targetGeneration)
+                        done.countDown();
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                    while (done.getCount() > 0)
+                        done.countDown();
+                    return;
+                }
+                trySchedule(tile.index - 1);
+                trySchedule(tile.index);
+                trySchedule(tile.index + 1);
+            }
+        }
+
+        private class Tile {
+            final int index;
+            final int firstRow;
+            final int rows;
+            final long[][] buffers;     // Generation g is in buffers[g & 1]: rows + 2 rows, the first and last being halos
+            final Phaser phaser = new Phaser(1);
+            final AtomicInteger claimed = new AtomicInteger();  // Generation being computed, or the phase if idle
+
+            Tile(int index, int firstRow, int rows) {
+                this.index = index;
+                this.firstRow = firstRow;
+                this.rows = rows;
+                this.buffers = new long[][] { new long[(rows + 2) * words], new long[(rows + 2) * words] };
+            }
+
+            long[] current() {
+                return buffers[phaser.getPhase() & 1];
+            }
+
+            /**
+             * Copies the edge rows of the given generation into the halos of the neighboring tiles.
+             */
+            void publishEdges(long[] cells, int generation) {
+                if (index > 0) {
+                    Tile above = tiles[index - 1];
+                    System.arraycopy(cells, words, above.buffers[generation & 1], (above.rows + 1) * words, words);
+                }
+                if (index + 1 < tiles.length) {
+                    Tile below = tiles[index + 1];
+                    System.arraycopy(cells, rows * words, below.buffers[generation & 1], 0, words);
+                }
+            }
+
+            void computeNext(long[] src, long[] dst) {
+                for (int r = 1; r <= rows; r++) {
+                    int above = (r - 1) * words, row = r * words, below = (r + 1) * words;
+                    for (int i = 0; i < words; i++) {
+                        long cell = src[row + i];
+                        long next = nextWord(
+                                west(src, above, i), src[above + i], east(src, above, i),
+                                west(src, row, i), cell, east(src, row, i),
+                                west(src, below, i), src[below + i], east(src, below, i));
+                        dst[row + i] = (i == words - 1) ? next & lastWordMask : next;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Neighbors to the west: bit j holds the cell at bit j - 1.
+         */
+        private long west(long[] cells, int row, int i) {
+            long carry = (i > 0) ? cells[row + i - 1] >>> 63 : 0;
+            return (cells[row + i] << 1) | carry;
+        }
+
+        /**
+         * Neighbors to the east: bit j holds the cell at bit j + 1.
+         */
+        private long east(long[] cells, int row, int i) {
+            long carry = (i + 1 < words) ? cells[row + i + 1] << 63 : 0;
+            return (cells[row + i] >>> 1) | carry;
+        }
+
+        private long nextWord(long nw, long n, long ne, long w, long cell, long e, long sw, long s, long se) {
+            // Bit-sliced count of live neighbors, 0..8, in s3 s2 s1 s0, by a network of full and half adders
+            long a1 = nw ^ n ^ ne, a2 = (nw & n) | (ne & (nw ^ n));
+            long b1 = w ^ e ^ sw, b2 = (w & e) | (sw & (w ^ e));
+            long c1 = s ^ se, c2 = s & se;
+            long s0 = a1 ^ b1 ^ c1, d2 = (a1 & b1) | (c1 & (a1 ^ b1));
+            long t = a2 ^ b2 ^ c2, e4 = (a2 & b2) | (c2 & (a2 ^ b2));
+            long s1 = t ^ d2, f4 = t & d2;
+            long s2 = e4 ^ f4, s3 = e4 & f4;
+
+            long born = 0, survives = 0;
+            for (int count = 0; count <= 8; count++) {
+                if (((birth | survival) & (1 << count)) == 0)
+                    continue;
+                long eq = (((count & 1) != 0) ? s0 : ~s0) & (((count & 2) != 0) ? s1 : ~s1)
+                        & (((count & 4) != 0) ? s2 : ~s2) & (((count & 8) != 0) ? s3 : ~s3);
+                if ((birth & (1 << count)) != 0)
+                    born |= eq;
+                if ((survival & (1 << count)) != 0)
+                    survives |= eq;
+            }
+            return (~cell & born) | (cell & survives);
+        }
+
+        private Tile tileOf(int x, int y) {
+            if (x < 0 || x >= width || y < 0 || y >= height)
+                throw new IndexOutOfBoundsException("(" + x + ", " + y + ") is not on the board");
+            return tiles[y / tiles[0].rows];
+        }
+
+        /**
+         * Parses the neighbor counts following the given letter in a rule such as "B3/S23".
+         */
+        private static int parseCounts(String rule, char letter) {
+            int counts = 0;
+            for (String part : rule.toUpperCase(Locale.ROOT).split("/")) {
+                if (part.isEmpty() || part.charAt(0) != letter)
+                    continue;
+                for (int i = 1; i < part.length(); i++) {
+                    int n = part.charAt(i) - '0';
+                    if (n < 0 || n > 8)
+                        throw new IllegalArgumentException("invalid rule: " + rule);
+                    counts |= 1 << n;
+                }
+            }
+            return counts;
+        }
+    }
+
 
 
     public static void main(String[] args) {
         TestHarness testHarness = new TestHarness();
+        BenchmarkHarness benchmarkHarness = new BenchmarkHarness(1);
         Preloader preloader = new Preloader();
+        PreloadManager preloadManager = new PreloadManager(1);
         BoundedHashSet<Integer> boundedHashSet = new BoundedHashSet<>(10);
+        WeightedBoundedHashSet<Integer> weightedBoundedHashSet = new WeightedBoundedHashSet<>(10);
         CellularAutomata cellularAutomata = new CellularAutomata(null);
+        TiledCellularAutomata tiledCellularAutomata = new TiledCellularAutomata(64, 64, "B3/S23", ForkJoinPool.commonPool());
     }
 
 }
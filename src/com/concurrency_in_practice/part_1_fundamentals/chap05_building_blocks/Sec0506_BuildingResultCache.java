@@ -1,21 +1,62 @@
 package com.concurrency_in_practice.part_1_fundamentals.chap05_building_blocks;
 
 import com.concurrency_in_practice.common.Annotation.GuardedBy;
+import com.concurrency_in_practice.common.Annotation.Immutable;
+import com.concurrency_in_practice.common.Annotation.NotThreadSafe;
 import com.concurrency_in_practice.common.Annotation.ThreadSafe;
+import com.concurrency_in_practice.common.FactorEngine;
 
 import javax.servlet.Servlet;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
 
 import static com.concurrency_in_practice.part_1_fundamentals.chap05_building_blocks.Sec0505_Synchronizers.launderThrowable;
 
@@ -98,6 +139,48 @@ import static com.concurrency_in_practice.part_1_fundamentals.chap05_building_bl
  * (Similarly, it does not address cache eviction, where old entries are removed to make room for new ones
  * so that the cache does not consume too much memory.)
  *
+ * BoundedMemorizer addresses eviction: it keeps at most a fixed number of entries,
+ * admitting new ones through a small LRU window and a frequency sketch (W-TinyLFU)
+ * and evicting from a segmented LRU, so that a long tail of one-off keys cannot push out the popular ones.
+ * Given a Weigher, it bounds the total weight of its values instead of their number.
+ * ReferenceValueMemorizer holds values through soft or weak references on top of it,
+ * so the garbage collector can reclaim cold values under memory pressure.
+ *
+ * ExpiringMemorizer addresses expiration along the lines suggested above:
+ * its FutureTask subclass records when each result was computed,
+ * and a hierarchical timing wheel finds the expired entries without scanning the whole cache.
+ * Hot entries can also be refreshed in the background before they expire, so callers keep getting the old value meanwhile.
+ *
+ * AsyncMemorizer caches a CompletableFuture and runs misses on an Executor,
+ * so callers can attach continuations instead of blocking in Future.get while another thread computes.
+ *
+ * BatchMemorizer adds a computeAll path that hands all of a request's misses to the backend in a single call.
+ *
+ * OffHeapMemorizer puts a second tier behind a BoundedMemorizer:
+ * evicted values are serialized into direct buffers outside the heap and promoted back when they are used again,
+ * so the cache can grow far beyond what the garbage collector would tolerate.
+ *
+ * PersistentMemorizer can snapshot its completed entries to a memory-mapped file and restore them after a restart,
+ * so a new process does not have to recompute everything before its hit rate recovers.
+ *
+ * InstrumentedMemorizer (and BoundedMemorizer) record hits, misses, load outcomes, load latency percentiles and evictions
+ * in LongAdder-based counters that can be read at any time without stopping the callers.
+ *
+ * FailureCachingMemorizer takes the middle road for failures:
+ * it keeps serving a failure for an exponentially growing backoff period, then lets a single caller retry,
+ * with a global cap on the number of retries running at once.
+ *
+ * LongMemorizer and IntMemorizer avoid boxing numeric keys by keeping them in a primitive open-addressing table,
+ * and replace each completed FutureTask with its value so that a hit neither allocates nor calls Future.get.
+ *
+ * DistributedMemorizer shards the cache across several JVMs:
+ * a consistent hash ring picks the node that owns each key, and other nodes forward their misses to it,
+ * so each key is computed once per cluster.
+ *
+ * MemorizerBenchmark puts numbers on the comparison above:
+ * it measures the throughput, tail latency and allocation of Memorizer1 through Memorizer across thread counts,
+ * key distributions and compute costs.
+ *
  * With our concurrent cache implementation complete, we can now add real caching to the factorizing servlet from Chapter 2.
  * Factorizer in Listing 5.20 uses Memorizer to cache previously computed values efficiently and scalably.
  */
@@ -266,7 +349,7 @@ public class Sec0506_BuildingResultCache {
         }
 
         private BigInteger[] factor(BigInteger i) {
-            return null;
+            return FactorEngine.factor(i);
         }
 
         private void encodeIntoResponse(ServletResponse resp, BigInteger[] factors) {
@@ -279,6 +362,2484 @@ public class Sec0506_BuildingResultCache {
     }
 
 
+    /**
+     * Cache Statistics.
+     *
+     * StatsCounter records what a memorizer does without adding a point of contention to its hot path:
+     * every count is a LongAdder, which spreads concurrent increments over per-thread cells,
+     * and load latencies go into a LatencyHistogram striped the same way.
+     * snapshot sums the cells into an immutable CacheStats while the cache keeps running,
+     * so the numbers are consistent enough for monitoring but not an atomic view.
+     */
+    @ThreadSafe
+    public static class StatsCounter {
+
+        private final LongAdder hitCount = new LongAdder();
+        private final LongAdder missCount = new LongAdder();
+        private final LongAdder loadSuccessCount = new LongAdder();
+        private final LongAdder loadFailureCount = new LongAdder();
+        private final LongAdder totalLoadTime = new LongAdder();
+        private final LongAdder evictionCount = new LongAdder();
+        private final LongAdder inFlight = new LongAdder();
+        private final LatencyHistogram loadLatency = new LatencyHistogram();
+
+        public void recordHit() { hitCount.increment(); }
+
+        public void recordMiss() { missCount.increment(); }
+
+        public void recordEviction() { evictionCount.increment(); }
+
+        public void recordLoadStart() { inFlight.increment(); }
+
+        public void recordLoadSuccess(long loadTimeNanos) {
+            inFlight.decrement();
+            loadSuccessCount.increment();
+            recordLoadTime(loadTimeNanos);
+        }
+
+        public void recordLoadFailure(long loadTimeNanos) {
+            inFlight.decrement();
+            loadFailureCount.increment();
+            recordLoadTime(loadTimeNanos);
+        }
+
+        private void recordLoadTime(long loadTimeNanos) {
+            totalLoadTime.add(loadTimeNanos);
+            loadLatency.record(loadTimeNanos);
+        }
+
+        public CacheStats snapshot() {
+            return new CacheStats(hitCount.sum(), missCount.sum(), loadSuccessCount.sum(), loadFailureCount.sum(),
+                    totalLoadTime.sum(), evictionCount.sum(), inFlight.sum(), loadLatency.counts());
+        }
+
+        /**
+         * Wraps a computation so that its latency and outcome are recorded.
+         */
+        public <A, V> Callable<V> timed(final Computable<A, V> c, final A arg) {
+            return new Callable<V>() {
+                public V call() throws InterruptedException {
+                    recordLoadStart();
+                    long start = System.nanoTime();
+                    boolean succeeded = false;
+                    try {
+                        V value = c.compute(arg);
+                        succeeded = true;
+                        return value;
+                    } finally {
+                        long elapsed = System.nanoTime() - start;
+                        if (succeeded)
+                            recordLoadSuccess(elapsed);
+                        else
+                            recordLoadFailure(elapsed);
+                    }
+                }
+            };
+        }
+    }
+
+    /**
+     * Immutable snapshot of a StatsCounter.
+     */
+    @Immutable
+    public static final class CacheStats {
+
+        private final long hitCount;
+        private final long missCount;
+        private final long loadSuccessCount;
+        private final long loadFailureCount;
+        private final long totalLoadTimeNanos;
+        private final long evictionCount;
+        private final long inFlightCount;
+        private final long[] latencyCounts;
+
+        CacheStats(long hitCount, long missCount, long loadSuccessCount, long loadFailureCount,
+                   long totalLoadTimeNanos, long evictionCount, long inFlightCount, long[] latencyCounts) {
+            this.hitCount = hitCount;
+            this.missCount = missCount;
+            this.loadSuccessCount = loadSuccessCount;
+            this.loadFailureCount = loadFailureCount;
+            this.totalLoadTimeNanos = totalLoadTimeNanos;
+            this.evictionCount = evictionCount;
+            this.inFlightCount = inFlightCount;
+            this.latencyCounts = latencyCounts;
+        }
+
+        public long hitCount() { return hitCount; }
+        public long missCount() { return missCount; }
+        public long loadSuccessCount() { return loadSuccessCount; }
+        public long loadFailureCount() { return loadFailureCount; }
+        public long totalLoadTimeNanos() { return totalLoadTimeNanos; }
+        public long evictionCount() { return evictionCount; }
+        public long inFlightCount() { return inFlightCount; }
+
+        public long requestCount() {
+            return hitCount + missCount;
+        }
+
+        public double hitRate() {
+            long requests = requestCount();
+            return (requests == 0) ? 1.0 : (double) hitCount / requests;
+        }
+
+        public double averageLoadPenaltyNanos() {
+            long loads = loadSuccessCount + loadFailureCount;
+            return (loads == 0) ? 0.0 : (double) totalLoadTimeNanos / loads;
+        }
+
+        /**
+         * Returns the load latency at the given percentile (0 to 100), overstated by at most 1/16.
+         */
+        public long loadLatencyAtPercentile(double percentile) {
+            return LatencyHistogram.valueAtPercentile(latencyCounts, percentile);
+        }
+
+        public String toString() {
+            return "CacheStats{hits=" + hitCount + ", misses=" + missCount
+                    + ", loadSuccesses=" + loadSuccessCount + ", loadFailures=" + loadFailureCount
+                    + ", totalLoadTimeNanos=" + totalLoadTimeNanos + ", evictions=" + evictionCount
+                    + ", inFlight=" + inFlightCount
+                    + ", p50=" + loadLatencyAtPercentile(50) + ", p99=" + loadLatencyAtPercentile(99) + "}";
+        }
+    }
+
+    /**
+     * HDR-style histogram of non-negative longs, such as latencies in nanoseconds.
+     *
+     * Values below 32 get a bucket each; above that, every power of two is split into 16 linear sub-buckets,
+     * so any value is recorded with a relative error of at most 1/16 in 976 buckets.
+     * Counts are striped by thread to keep concurrent writers off each other's cache lines.
+     */
+    @ThreadSafe
+    static final class LatencyHistogram {
+
+        private static final int SUB_BUCKET_BITS = 5;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int HALF = SUB_BUCKETS / 2;
+        static final int BUCKETS = SUB_BUCKETS + (64 - SUB_BUCKET_BITS) * HALF;
+
+        private final AtomicLongArray[] stripes;
+
+        LatencyHistogram() {
+            int n = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() - 1)) << 1;
+            this.stripes = new AtomicLongArray[n];
+            for (int i = 0; i < n; i++)
+                stripes[i] = new AtomicLongArray(BUCKETS);
+        }
+
+        void record(long value) {
+            long id = Thread.currentThread().getId();
+            stripes[(int) (id ^ (id >>> 16)) & (stripes.length - 1)].incrementAndGet(indexOf(Math.max(0, value)));
+        }
+
+        long[] counts() {
+            long[] counts = new long[BUCKETS];
+            for (AtomicLongArray stripe : stripes)
+                for (int i = 0; i < BUCKETS; i++)
+                    counts[i] += stripe.get(i);
+            return counts;
+        }
+
+        static int indexOf(long value) {
+            if (value < SUB_BUCKETS)
+                return (int) value;
+            int shift = (63 - Long.numberOfLeadingZeros(value)) - (SUB_BUCKET_BITS - 1);
+            int top = (int) (value >>> shift);
+            return SUB_BUCKETS + (shift - 1) * HALF + (top - HALF);
+        }
+
+        /**
+         * The largest value that falls into the bucket.
+         */
+        static long highestValueAt(int index) {
+            if (index < SUB_BUCKETS)
+                return index;
+            int shift = (index - SUB_BUCKETS) / HALF + 1;
+            long top = (index - SUB_BUCKETS) % HALF + HALF;
+            return ((top + 1) << shift) - 1;
+        }
+
+        static long valueAtPercentile(long[] counts, double percentile) {
+            long total = 0;
+            for (long count : counts)
+                total += count;
+            if (total == 0)
+                return 0;
+
+            long rank = Math.max(1, (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank)
+                    return highestValueAt(i);
+            }
+            return highestValueAt(counts.length - 1);
+        }
+    }
+
+    /**
+     * Memorizer with Statistics.
+     *
+     * The Listing 5.19 Memorizer, recording its hits, misses, loads and in-flight computations in a StatsCounter.
+     * A caller that joins a computation already in progress counts as a hit, since it did not start a load.
+     */
+    @ThreadSafe
+    public static class InstrumentedMemorizer<A, V> implements Computable<A, V> {
+
+        private final ConcurrentMap<A, Future<V>> cache = new ConcurrentHashMap<>();
+        private final Computable<A, V> c;
+        private final StatsCounter stats = new StatsCounter();
+
+        public InstrumentedMemorizer(Computable<A, V> c) {
+            this.c = c;
+        }
+
+        public V compute(final A arg) throws InterruptedException {
+            while (true) {
+                Future<V> f = cache.get(arg);
+
+                if (f == null) {
+                    FutureTask<V> ft = new FutureTask<>(stats.timed(c, arg));
+                    f = cache.putIfAbsent(arg, ft);
+
+                    if (f == null) {
+                        stats.recordMiss();
+                        f = ft;
+                        ft.run();
+                    } else {
+                        stats.recordHit();
+                    }
+                } else {
+                    stats.recordHit();
+                }
+
+                try {
+                    return f.get();
+                } catch (CancellationException e) {
+                    cache.remove(arg, f);
+                } catch (ExecutionException e) {
+                    throw launderThrowable(e.getCause());
+                }
+            }
+        }
+
+        public CacheStats stats() {
+            return stats.snapshot();
+        }
+    }
+
+    /**
+     * Callback told about each entry a bounded cache evicts; the future has completed, possibly with a failure.
+     */
+    public interface EvictionListener<A, V> {
+        void onEviction(A key, Future<V> value);
+    }
+
+    /**
+     * Computes the relative size of a cache entry, for caches bounded by total weight instead of entry count.
+     * Weights must be non-negative and must not change while the entry is cached.
+     */
+    public interface Weigher<A, V> {
+        int weigh(A key, V value);
+    }
+
+    /**
+     * Bounded Memorizer with W-TinyLFU Admission and Eviction.
+     *
+     * Memorizer keeps every Future forever; BoundedMemorizer holds at most maximumSize entries,
+     * or, given a Weigher, at most maximumWeight in total weight.
+     * New entries enter a small LRU admission window (1% of the capacity).
+     * Entries leaving the window compete with the main space's LRU victim,
+     * and only the one a FrequencySketch has seen more often stays.
+     * The main space is a segmented LRU: a hit in the probation segment promotes the entry to the protected segment (80% of the main space).
+     *
+     * Each entry is itself the FutureTask, so concurrent callers for the same key still share one in-flight computation.
+     * An entry joins the policy only once its computation has completed, so an in-flight computation is never evicted;
+     * while computations are in progress, the cache may briefly hold more than its maximum.
+     * With a Weigher, an entry is weighed as it joins the policy; a failed computation weighs 1.
+     *
+     * The policy state is guarded by evictionLock.
+     * Writes always take the lock, but reads only record the access if the lock is free,
+     * so a hit never blocks behind the policy (dropping a few reorderings is harmless to the hit rate).
+     * An optional EvictionListener is told about each evicted entry after the lock has been released.
+     * Hits, misses, loads and evictions are recorded in a StatsCounter.
+     */
+    @ThreadSafe
+    public static class BoundedMemorizer<A, V> implements Computable<A, V> {
+
+        private static final int WINDOW = 0, PROBATION = 1, PROTECTED = 2;
+        private static final int MAXIMUM_SKETCH_SIZE_FOR_WEIGHTS = 1 << 20;
+
+        private final ConcurrentMap<A, Node<A, V>> cache = new ConcurrentHashMap<>();
+        private final Computable<A, V> c;
+        private final long maximum;
+        private final long windowMaximum;
+        private final long protectedMaximum;
+        private final Weigher<A, V> weigher;
+        private final EvictionListener<A, V> listener;
+        private final StatsCounter stats = new StatsCounter();
+
+        private final ReentrantLock evictionLock = new ReentrantLock();
+        @GuardedBy("evictionLock") private final FrequencySketch sketch;
+        @GuardedBy("evictionLock") private final AccessOrderDeque<A, V> window = new AccessOrderDeque<>();
+        @GuardedBy("evictionLock") private final AccessOrderDeque<A, V> probation = new AccessOrderDeque<>();
+        @GuardedBy("evictionLock") private final AccessOrderDeque<A, V> protectedSegment = new AccessOrderDeque<>();
+
+        public BoundedMemorizer(Computable<A, V> c, long maximumSize) {
+            this(c, maximumSize, null);
+        }
+
+        public BoundedMemorizer(Computable<A, V> c, long maximumSize, EvictionListener<A, V> listener) {
+            this(c, maximumSize, null, listener);
+        }
+
+        /**
+         * @param weigher null bounds the cache by entry count, so that maximum is a maximum size
+         */
+        public BoundedMemorizer(Computable<A, V> c, long maximum, Weigher<A, V> weigher, EvictionListener<A, V> listener) {
+            if (maximum <= 0)
+                throw new IllegalArgumentException("maximum must be positive: " + maximum);
+            this.c = c;
+            this.maximum = maximum;
+            this.weigher = weigher;
+            this.listener = listener;
+            this.windowMaximum = Math.max(1, maximum / 100);
+            this.protectedMaximum = (maximum - windowMaximum) * 80 / 100;
+            this.sketch = new FrequencySketch((weigher == null) ? maximum : Math.min(maximum, MAXIMUM_SKETCH_SIZE_FOR_WEIGHTS));
+        }
+
+        public V compute(final A arg) throws InterruptedException {
+            while (true) {
+                Node<A, V> f = cache.get(arg);
+
+                if (f == null) {
+                    Node<A, V> node = new Node<>(arg, stats.timed(c, arg));
+                    f = cache.putIfAbsent(arg, node);
+
+                    if (f == null) {
+                        stats.recordMiss();
+                        f = node;
+                        node.run();
+                        afterWrite(node);
+                    } else {
+                        stats.recordHit();
+                        afterRead(f);
+                    }
+                } else {
+                    stats.recordHit();
+                    afterRead(f);
+                }
+
+                try {
+                    return f.get();
+                } catch (CancellationException e) {
+                    if (cache.remove(arg, f))
+                        afterRemoval(f);
+                } catch (ExecutionException e) {
+                    throw launderThrowable(e.getCause());
+                }
+            }
+        }
+
+        /**
+         * Removes the entry for key if it has completed with exactly this value.
+         */
+        public boolean invalidate(A key, V value) {
+            Node<A, V> node = cache.get(key);
+            if (node == null || !node.isDone() || node.isCancelled())
+                return false;
+            try {
+                if (node.get() != value || !cache.remove(key, node))
+                    return false;
+            } catch (ExecutionException | InterruptedException e) {
+                return false;
+            }
+            afterRemoval(node);
+            return true;
+        }
+
+        public long size() {
+            return cache.size();
+        }
+
+        public long weightedSize() {
+            evictionLock.lock();
+            try {
+                return window.weight + probation.weight + protectedSegment.weight;
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+
+        public CacheStats stats() {
+            return stats.snapshot();
+        }
+
+        private void afterRead(Node<A, V> node) {
+            if (evictionLock.tryLock()) {
+                try {
+                    sketch.increment(node.key);
+                    onAccess(node);
+                } finally {
+                    evictionLock.unlock();
+                }
+            }
+        }
+
+        /**
+         * Links a completed node into the policy and evicts down to the maximum.
+         */
+        private void afterWrite(Node<A, V> node) {
+            int weight = (weigher == null) ? 1 : weigh(node);
+
+            List<Node<A, V>> evicted = null;
+            evictionLock.lock();
+            try {
+                sketch.increment(node.key);
+                // A canceled computation may already have removed the node from the map
+                if (cache.get(node.key) == node) {
+                    node.weight = weight;
+                    window.addLast(node, WINDOW);
+                    evicted = evict();
+                }
+            } finally {
+                evictionLock.unlock();
+            }
+            notifyEvicted(evicted);
+        }
+
+        private int weigh(Node<A, V> node) {
+            try {
+                return weigher.weigh(node.key, node.get());
+            } catch (ExecutionException | CancellationException | InterruptedException e) {
+                return 1;
+            }
+        }
+
+        private void afterRemoval(Node<A, V> node) {
+            evictionLock.lock();
+            try {
+                AccessOrderDeque<A, V> deque = dequeOf(node);
+                if (deque != null)
+                    deque.remove(node);
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+
+        private void notifyEvicted(List<Node<A, V>> evicted) {
+            if (evicted != null && listener != null) {
+                for (Node<A, V> victim : evicted)
+                    listener.onEviction(victim.key, victim);
+            }
+        }
+
+        // Called with evictionLock held
+        private void onAccess(Node<A, V> node) {
+            switch (node.queue) {
+                case WINDOW:
+                    window.moveToBack(node);
+                    break;
+                case PROBATION:
+                    probation.remove(node);
+                    protectedSegment.addLast(node, PROTECTED);
+                    while (protectedSegment.weight > protectedMaximum)
+                        probation.addLast(protectedSegment.removeFirst(), PROBATION);
+                    break;
+                case PROTECTED:
+                    protectedSegment.moveToBack(node);
+                    break;
+                default:
+                    // Not linked yet or already evicted
+            }
+        }
+
+        /**
+         * Moves entries that fell out of the admission window into the main space;
+         * while the cache is over its maximum, each such candidate is compared with the main space's LRU victim,
+         * and whichever is used less frequently is evicted.
+         * Called with evictionLock held; returns the evicted entries, or null if there were none.
+         */
+        private List<Node<A, V>> evict() {
+            List<Node<A, V>> evicted = null;
+
+            while (window.weight > windowMaximum) {
+                Node<A, V> candidate = window.removeFirst();
+                probation.addLast(candidate, PROBATION);
+
+                while (totalWeight() > maximum) {
+                    Node<A, V> victim = (probation.first != candidate) ? probation.first : protectedSegment.first;
+
+                    // With a maximum of 1 the main space holds nothing but the candidate, which then has no rival
+                    if (victim == null || candidate.weight > maximum
+                            || sketch.frequency(candidate.key) <= sketch.frequency(victim.key)) {
+                        evicted = evictNode(candidate, evicted);
+                        break;
+                    }
+                    evicted = evictNode(victim, evicted);
+                }
+            }
+
+            // A heavy entry can also push the cache over without overflowing the window
+            while (totalWeight() > maximum) {
+                Node<A, V> victim = (probation.first != null) ? probation.first
+                        : (protectedSegment.first != null) ? protectedSegment.first : window.first;
+                evicted = evictNode(victim, evicted);
+            }
+            return evicted;
+        }
+
+        // Called with evictionLock held
+        private List<Node<A, V>> evictNode(Node<A, V> node, List<Node<A, V>> evicted) {
+            dequeOf(node).remove(node);
+            if (cache.remove(node.key, node)) {
+                stats.recordEviction();
+                if (evicted == null)
+                    evicted = new ArrayList<>();
+                evicted.add(node);
+            }
+            return evicted;
+        }
+
+        // Called with evictionLock held
+        private long totalWeight() {
+            return window.weight + probation.weight + protectedSegment.weight;
+        }
+
+        // Called with evictionLock held
+        private AccessOrderDeque<A, V> dequeOf(Node<A, V> node) {
+            switch (node.queue) {
+                case WINDOW:    return window;
+                case PROBATION: return probation;
+                case PROTECTED: return protectedSegment;
+                default:        return null;
+            }
+        }
+
+        /**
+         * A cache entry is the FutureTask computing its value, linked into one of the policy's deques.
+         */
+        private static final class Node<A, V> extends FutureTask<V> {
+            final A key;
+            @GuardedBy("evictionLock") int weight;
+            @GuardedBy("evictionLock") int queue = -1;
+            @GuardedBy("evictionLock") Node<A, V> prev, next;
+
+            Node(A key, Callable<V> eval) {
+                super(eval);
+                this.key = key;
+            }
+        }
+
+        /**
+         * Intrusive doubly-linked list ordered from least to most recently used, keeping the total weight of its nodes.
+         */
+        @NotThreadSafe
+        private static final class AccessOrderDeque<A, V> {
+            Node<A, V> first, last;
+            long weight;
+
+            void addLast(Node<A, V> node, int queue) {
+                node.queue = queue;
+                node.prev = last;
+                node.next = null;
+                if (last == null)
+                    first = node;
+                else
+                    last.next = node;
+                last = node;
+                weight += node.weight;
+            }
+
+            Node<A, V> removeFirst() {
+                Node<A, V> node = first;
+                remove(node);
+                return node;
+            }
+
+            void moveToBack(Node<A, V> node) {
+                if (node != last) {
+                    int queue = node.queue;
+                    remove(node);
+                    addLast(node, queue);
+                }
+            }
+
+            void remove(Node<A, V> node) {
+                if (node.prev == null)
+                    first = node.next;
+                else
+                    node.prev.next = node.next;
+                if (node.next == null)
+                    last = node.prev;
+                else
+                    node.next.prev = node.prev;
+                node.prev = node.next = null;
+                node.queue = -1;
+                weight -= node.weight;
+            }
+        }
+    }
+
+    /**
+     * Memorizer with Soft or Weak Values.
+     *
+     * Values are held through SoftReferences (cleared by the GC when memory runs short, least recently used first)
+     * or WeakReferences (cleared as soon as nothing else uses the value),
+     * so cold values can be reclaimed before the JVM runs out of memory.
+     * The entries themselves live in a BoundedMemorizer of references, bounded by count or by weight.
+     *
+     * A caller that finds a cleared reference invalidates the entry and computes the value again.
+     * Cleared references are also delivered to a ReferenceQueue, which every call drains,
+     * so entries whose values were collected do not linger until they are evicted.
+     */
+    @ThreadSafe
+    public static class ReferenceValueMemorizer<A, V> implements Computable<A, V> {
+
+        public enum Strength { SOFT, WEAK }
+
+        private static final Reference<Object> NULL_VALUE = new WeakReference<>(null);
+
+        private final ReferenceQueue<V> queue = new ReferenceQueue<>();
+        private final BoundedMemorizer<A, Reference<V>> delegate;
+
+        public ReferenceValueMemorizer(final Computable<A, V> c, final Strength strength,
+                                       long maximum, final Weigher<A, V> weigher) {
+            Weigher<A, Reference<V>> referenceWeigher = (weigher == null) ? null : new Weigher<A, Reference<V>>() {
+                public int weigh(A key, Reference<V> ref) {
+                    V value = ref.get();
+                    return (value == null) ? 0 : weigher.weigh(key, value);
+                }
+            };
+
+            this.delegate = new BoundedMemorizer<>(new Computable<A, Reference<V>>() {
+                @SuppressWarnings("unchecked")
+                public Reference<V> compute(A arg) throws InterruptedException {
+                    V value = c.compute(arg);
+                    if (value == null)
+                        return (Reference<V>) (Reference<?>) NULL_VALUE;
+                    return (strength == Strength.SOFT)
+                            ? new KeyedSoftReference<>(arg, value, queue)
+                            : new KeyedWeakReference<>(arg, value, queue);
+                }
+            }, maximum, referenceWeigher, null);
+        }
+
+        public V compute(A arg) throws InterruptedException {
+            drainReferenceQueue();
+            while (true) {
+                Reference<V> ref = delegate.compute(arg);
+                if (ref == NULL_VALUE)
+                    return null;
+                V value = ref.get();
+                if (value != null)
+                    return value;
+                delegate.invalidate(arg, ref);
+            }
+        }
+
+        public long size() {
+            return delegate.size();
+        }
+
+        @SuppressWarnings("unchecked")
+        private void drainReferenceQueue() {
+            Reference<? extends V> ref;
+            while ((ref = queue.poll()) != null)
+                delegate.invalidate(((KeyedReference<A>) ref).key(), (Reference<V>) ref);
+        }
+
+        private interface KeyedReference<A> {
+            A key();
+        }
+
+        private static final class KeyedSoftReference<A, V> extends SoftReference<V> implements KeyedReference<A> {
+            private final A key;
+
+            KeyedSoftReference(A key, V value, ReferenceQueue<V> queue) {
+                super(value, queue);
+                this.key = key;
+            }
+
+            public A key() { return key; }
+        }
+
+        private static final class KeyedWeakReference<A, V> extends WeakReference<V> implements KeyedReference<A> {
+            private final A key;
+
+            KeyedWeakReference(A key, V value, ReferenceQueue<V> queue) {
+                super(value, queue);
+                this.key = key;
+            }
+
+            public A key() { return key; }
+        }
+    }
+
+    /**
+     * Memorizer with Time-based Expiration and Refresh-ahead.
+     *
+     * Each entry remembers when its computation finished.
+     * Once an entry is older than expireAfterWrite it is no longer served, and the next caller computes it again.
+     * Once it is older than refreshAfterWrite, the first caller to notice starts one recomputation on the executor,
+     * and every caller keeps getting the old value until the new one replaces it;
+     * if the refresh fails, the old value stays until it expires.
+     *
+     * Expired entries are found by a hierarchical timing wheel instead of a periodic scan of the whole map:
+     * each completed entry sits in the bucket covering its expiration time,
+     * and advancing the wheel only visits the buckets whose time has passed.
+     */
+    @ThreadSafe
+    public static class ExpiringMemorizer<A, V> implements Computable<A, V> {
+
+        private final ConcurrentMap<A, Entry<A, V>> cache = new ConcurrentHashMap<>();
+        private final Computable<A, V> c;
+        private final long expireAfterWriteNanos;
+        private final long refreshAfterWriteNanos;
+        private final Executor refreshExecutor;
+
+        private final ReentrantLock timerLock = new ReentrantLock();
+        @GuardedBy("timerLock") private final TimerWheel<A, V> timerWheel = new TimerWheel<>(System.nanoTime());
+
+        /**
+         * @param refreshAfterWrite zero disables refresh-ahead; otherwise it must be shorter than expireAfterWrite
+         */
+        public ExpiringMemorizer(Computable<A, V> c, long expireAfterWrite, long refreshAfterWrite,
+                                 TimeUnit unit, Executor refreshExecutor) {
+            if (expireAfterWrite <= 0)
+                throw new IllegalArgumentException("expireAfterWrite must be positive: " + expireAfterWrite);
+            if (refreshAfterWrite < 0 || refreshAfterWrite >= expireAfterWrite)
+                throw new IllegalArgumentException("refreshAfterWrite must be in [0, expireAfterWrite): " + refreshAfterWrite);
+            this.c = c;
+            this.expireAfterWriteNanos = unit.toNanos(expireAfterWrite);
+            this.refreshAfterWriteNanos = unit.toNanos(refreshAfterWrite);
+            this.refreshExecutor = refreshExecutor;
+        }
+
+        public V compute(final A arg) throws InterruptedException {
+            while (true) {
+                long now = System.nanoTime();
+                Entry<A, V> f = cache.get(arg);
+
+                if (f != null && f.isDone() && now - f.writeTime >= expireAfterWriteNanos) {
+                    if (cache.remove(arg, f))
+                        afterRemoval(f);
+                    f = null;
+                }
+
+                if (f == null) {
+                    Entry<A, V> ft = newEntry(arg);
+                    f = cache.putIfAbsent(arg, ft);
+
+                    if (f == null) {
+                        f = ft;
+                        ft.run();
+                        afterWrite(ft);
+                    }
+                } else if (refreshAfterWriteNanos > 0 && f.isDone()
+                        && now - f.writeTime >= refreshAfterWriteNanos) {
+                    refresh(f);
+                }
+
+                cleanUp(now);
+
+                try {
+                    return f.get();
+                } catch (CancellationException e) {
+                    if (cache.remove(arg, f))
+                        afterRemoval(f);
+                } catch (ExecutionException e) {
+                    throw launderThrowable(e.getCause());
+                }
+            }
+        }
+
+        /**
+         * Removes every entry whose expiration time has passed.
+         */
+        public void cleanUp() {
+            timerLock.lock();
+            try {
+                timerWheel.advance(System.nanoTime(), cache);
+            } finally {
+                timerLock.unlock();
+            }
+        }
+
+        public long size() {
+            return cache.size();
+        }
+
+        private void cleanUp(long now) {
+            if (timerLock.tryLock()) {
+                try {
+                    timerWheel.advance(now, cache);
+                } finally {
+                    timerLock.unlock();
+                }
+            }
+        }
+
+        private Entry<A, V> newEntry(final A arg) {
+            return new Entry<>(arg, new Callable<V>() {
+                public V call() throws InterruptedException {
+                    return c.compute(arg);
+                }
+            });
+        }
+
+        private void refresh(final Entry<A, V> stale) {
+            if (!stale.refreshing.compareAndSet(false, true))
+                return;
+
+            final Entry<A, V> fresh = newEntry(stale.key);
+            try {
+                refreshExecutor.execute(new Runnable() {
+                    public void run() {
+                        fresh.run();
+                        if (fresh.failed() || !cache.replace(stale.key, stale, fresh)) {
+                            // Keep serving the old value; a later caller may try again
+                            stale.refreshing.set(false);
+                            return;
+                        }
+                        afterRemoval(stale);
+                        afterWrite(fresh);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                stale.refreshing.set(false);
+            }
+        }
+
+        private void afterWrite(Entry<A, V> entry) {
+            timerLock.lock();
+            try {
+                // The entry may have been canceled or replaced while it was being computed
+                if (cache.get(entry.key) == entry)
+                    timerWheel.schedule(entry, entry.writeTime + expireAfterWriteNanos);
+            } finally {
+                timerLock.unlock();
+            }
+        }
+
+        private void afterRemoval(Entry<A, V> entry) {
+            timerLock.lock();
+            try {
+                timerWheel.deschedule(entry);
+            } finally {
+                timerLock.unlock();
+            }
+        }
+
+        /**
+         * A cache entry is the FutureTask computing its value, stamped with the time the computation finished.
+         */
+        private static final class Entry<A, V> extends FutureTask<V> {
+            final A key;
+            final AtomicBoolean refreshing = new AtomicBoolean();
+            // Written before the result is published, so it is visible to anyone who sees isDone()
+            volatile long writeTime;
+            private volatile boolean failed;
+
+            @GuardedBy("timerLock") long deadline;
+            @GuardedBy("timerLock") Entry<A, V> prevInTimer, nextInTimer;
+
+            Entry(A key, Callable<V> eval) {
+                super(eval);
+                this.key = key;
+            }
+
+            boolean failed() {
+                return failed;
+            }
+
+            protected void set(V v) {
+                writeTime = System.nanoTime();
+                super.set(v);
+            }
+
+            protected void setException(Throwable t) {
+                writeTime = System.nanoTime();
+                failed = true;
+                super.setException(t);
+            }
+        }
+
+        /**
+         * Hierarchical timing wheel.
+         *
+         * Level 0 has 64 buckets of about one second each, level 1 has 64 buckets of about a minute,
+         * level 2 has 32 buckets of about an hour, level 3 has 4 buckets of about a day,
+         * and the last level is a single overflow bucket.
+         * An entry is put on the finest level whose range covers its remaining time;
+         * when a coarser bucket's time passes, its entries are either expired or cascaded down to a finer level.
+         */
+        @NotThreadSafe
+        private static final class TimerWheel<A, V> {
+
+            private static final int[] BUCKETS = { 64, 64, 32, 4, 1 };
+            private static final long[] SPANS = { 1L << 30, 1L << 36, 1L << 42, 1L << 47, 1L << 49, 1L << 49 };
+            private static final int[] SHIFT = { 30, 36, 42, 47, 49 };
+
+            private final Entry<A, V>[][] wheel;
+            private long nanos;
+
+            TimerWheel(long nanos) {
+                this.nanos = nanos;
+                this.wheel = newWheel();
+                for (int i = 0; i < BUCKETS.length; i++)
+                    for (int j = 0; j < BUCKETS[i]; j++)
+                        wheel[i][j] = sentinel();
+            }
+
+            @SuppressWarnings("unchecked")
+            private static <A, V> Entry<A, V>[][] newWheel() {
+                Entry<?, ?>[][] wheel = new Entry<?, ?>[BUCKETS.length][];
+                for (int i = 0; i < BUCKETS.length; i++)
+                    wheel[i] = new Entry<?, ?>[BUCKETS[i]];
+                return (Entry<A, V>[][]) wheel;
+            }
+
+            void schedule(Entry<A, V> entry, long deadline) {
+                entry.deadline = deadline;
+                link(findBucket(deadline), entry);
+            }
+
+            void deschedule(Entry<A, V> entry) {
+                if (entry.nextInTimer != null)
+                    unlink(entry);
+            }
+
+            /**
+             * Moves the wheel forward to the current time, removing expired entries from the cache.
+             */
+            void advance(long currentTimeNanos, ConcurrentMap<A, Entry<A, V>> cache) {
+                long previousTimeNanos = nanos;
+                nanos = currentTimeNanos;
+
+                for (int i = 0; i < SHIFT.length; i++) {
+                    long previousTicks = previousTimeNanos >>> SHIFT[i];
+                    long currentTicks = currentTimeNanos >>> SHIFT[i];
+                    if (currentTicks - previousTicks <= 0)
+                        break;
+                    expire(i, previousTicks, currentTicks - previousTicks, cache);
+                }
+            }
+
+            private void expire(int level, long previousTicks, long delta, ConcurrentMap<A, Entry<A, V>> cache) {
+                Entry<A, V>[] buckets = wheel[level];
+                int mask = buckets.length - 1;
+                int steps = (int) Math.min(1 + delta, buckets.length);
+                int start = (int) (previousTicks & mask);
+
+                for (int i = start; i < start + steps; i++) {
+                    Entry<A, V> sentinel = buckets[i & mask];
+                    Entry<A, V> entry = sentinel.nextInTimer;
+                    sentinel.prevInTimer = sentinel.nextInTimer = sentinel;
+
+                    while (entry != sentinel) {
+                        Entry<A, V> next = entry.nextInTimer;
+                        entry.prevInTimer = entry.nextInTimer = null;
+
+                        if (entry.deadline - nanos <= 0)
+                            cache.remove(entry.key, entry);
+                        else
+                            schedule(entry, entry.deadline);
+                        entry = next;
+                    }
+                }
+            }
+
+            private Entry<A, V> findBucket(long deadline) {
+                long duration = deadline - nanos;
+                int last = wheel.length - 1;
+                for (int i = 0; i < last; i++) {
+                    if (duration < SPANS[i + 1]) {
+                        long ticks = deadline >>> SHIFT[i];
+                        return wheel[i][(int) (ticks & (wheel[i].length - 1))];
+                    }
+                }
+                return wheel[last][0];
+            }
+
+            private static <A, V> void link(Entry<A, V> sentinel, Entry<A, V> entry) {
+                entry.prevInTimer = sentinel.prevInTimer;
+                entry.nextInTimer = sentinel;
+                sentinel.prevInTimer.nextInTimer = entry;
+                sentinel.prevInTimer = entry;
+            }
+
+            private static <A, V> void unlink(Entry<A, V> entry) {
+                entry.prevInTimer.nextInTimer = entry.nextInTimer;
+                entry.nextInTimer.prevInTimer = entry.prevInTimer;
+                entry.prevInTimer = entry.nextInTimer = null;
+            }
+
+            private Entry<A, V> sentinel() {
+                Entry<A, V> sentinel = new Entry<>(null, new Callable<V>() {
+                    public V call() {
+                        return null;
+                    }
+                });
+                sentinel.prevInTimer = sentinel.nextInTimer = sentinel;
+                return sentinel;
+            }
+        }
+    }
+
+    /**
+     * A function whose result is delivered through a CompletableFuture instead of blocking the caller.
+     */
+    public interface AsyncComputable<A, V> {
+        CompletableFuture<V> computeAsync(A arg);
+    }
+
+    /**
+     * Asynchronous Memorizer.
+     *
+     * Memorizer runs a miss on the thread that wins putIfAbsent and parks every other caller in Future.get.
+     * AsyncMemorizer caches a CompletableFuture instead and runs misses on an Executor,
+     * so no caller is blocked: callers that do not want to wait attach continuations to the returned future.
+     *
+     * The returned future is shared by every caller of the same key.
+     * If it is canceled, it is removed from the cache, just as Memorizer removes a canceled FutureTask,
+     * so the next call starts a new computation.
+     */
+    @ThreadSafe
+    public static class AsyncMemorizer<A, V> implements AsyncComputable<A, V>, Computable<A, V> {
+
+        private final ConcurrentMap<A, CompletableFuture<V>> cache = new ConcurrentHashMap<>();
+        private final Computable<A, V> c;
+        private final Executor executor;
+
+        public AsyncMemorizer(Computable<A, V> c, Executor executor) {
+            this.c = c;
+            this.executor = executor;
+        }
+
+        public CompletableFuture<V> computeAsync(final A arg) {
+            CompletableFuture<V> f = cache.get(arg);
+            if (f != null)
+                return f;
+
+            final CompletableFuture<V> ft = new CompletableFuture<>();
+            f = cache.putIfAbsent(arg, ft);
+            if (f != null)
+                return f;
+
+            ft.whenComplete(new BiConsumer<V, Throwable>() {
+                public void accept(V v, Throwable t) {
+                    if (ft.isCancelled())
+                        cache.remove(arg, ft);
+                }
+            });
+
+            try {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        if (ft.isDone())
+                            return;
+                        try {
+                            ft.complete(c.compute(arg));
+                        } catch (InterruptedException e) {
+                            ft.completeExceptionally(e);
+                            Thread.currentThread().interrupt();
+                        } catch (Throwable t) {
+                            ft.completeExceptionally(t);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                cache.remove(arg, ft);
+                ft.completeExceptionally(e);
+            }
+            return ft;
+        }
+
+        /**
+         * Blocking adapter, so that AsyncMemorizer can stand in wherever a Computable is expected.
+         */
+        public V compute(A arg) throws InterruptedException {
+            while (true) {
+                CompletableFuture<V> f = computeAsync(arg);
+                try {
+                    return f.get();
+                } catch (CancellationException e) {
+                    cache.remove(arg, f);
+                } catch (ExecutionException e) {
+                    throw launderThrowable(e.getCause());
+                }
+            }
+        }
+    }
+
+    /**
+     * A function that can compute the values for many keys in one call, such as a single backend round trip.
+     */
+    public interface BatchComputable<A, V> {
+        /**
+         * Returns a value for each of the given keys; a key missing from the result is reported as a failure.
+         */
+        Map<A, V> computeAll(Collection<A> args) throws InterruptedException;
+    }
+
+    /**
+     * Memorizer with a Batch Compute Path.
+     *
+     * BatchMemorizer.computeAll looks up every key in one pass and registers a placeholder future for each miss,
+     * then hands all the misses it owns to BatchComputable.computeAll in a single call.
+     * A batch of N keys therefore costs one backend round trip instead of N.
+     * Keys that another thread is already computing are not requested again;
+     * computeAll simply waits for those futures as Memorizer would.
+     */
+    @ThreadSafe
+    public static class BatchMemorizer<A, V> implements Computable<A, V> {
+
+        private final ConcurrentMap<A, CompletableFuture<V>> cache = new ConcurrentHashMap<>();
+        private final BatchComputable<A, V> c;
+
+        public BatchMemorizer(BatchComputable<A, V> c) {
+            this.c = c;
+        }
+
+        public V compute(A arg) throws InterruptedException {
+            return computeAll(Collections.singleton(arg)).get(arg);
+        }
+
+        /**
+         * Returns the values for the given keys, in iteration order, with duplicates collapsed.
+         */
+        public Map<A, V> computeAll(Collection<? extends A> args) throws InterruptedException {
+            Map<A, CompletableFuture<V>> futures = new LinkedHashMap<>();
+            Map<A, CompletableFuture<V>> misses = new LinkedHashMap<>();
+
+            for (A arg : args) {
+                if (futures.containsKey(arg))
+                    continue;
+
+                CompletableFuture<V> f = cache.get(arg);
+                if (f == null) {
+                    CompletableFuture<V> ft = new CompletableFuture<>();
+                    f = cache.putIfAbsent(arg, ft);
+                    if (f == null) {
+                        f = ft;
+                        misses.put(arg, ft);
+                    }
+                }
+                futures.put(arg, f);
+            }
+
+            if (!misses.isEmpty())
+                load(misses);
+
+            Map<A, V> result = new LinkedHashMap<>();
+            List<A> retry = null;
+
+            for (Map.Entry<A, CompletableFuture<V>> entry : futures.entrySet()) {
+                try {
+                    result.put(entry.getKey(), entry.getValue().get());
+                } catch (CancellationException e) {
+                    cache.remove(entry.getKey(), entry.getValue());
+                    if (retry == null)
+                        retry = new ArrayList<>();
+                    retry.add(entry.getKey());
+                } catch (ExecutionException e) {
+                    throw launderThrowable(e.getCause());
+                }
+            }
+
+            if (retry != null)
+                result.putAll(computeAll(retry));
+            return result;
+        }
+
+        private void load(Map<A, CompletableFuture<V>> misses) throws InterruptedException {
+            Map<A, V> values;
+            try {
+                values = c.computeAll(Collections.unmodifiableSet(misses.keySet()));
+            } catch (InterruptedException e) {
+                // Let other waiters retry rather than see this thread's interruption
+                for (Map.Entry<A, CompletableFuture<V>> entry : misses.entrySet()) {
+                    cache.remove(entry.getKey(), entry.getValue());
+                    entry.getValue().cancel(false);
+                }
+                throw e;
+            } catch (Throwable t) {
+                for (CompletableFuture<V> f : misses.values())
+                    f.completeExceptionally(t);
+                return;
+            }
+
+            for (Map.Entry<A, CompletableFuture<V>> entry : misses.entrySet()) {
+                A arg = entry.getKey();
+                if (values != null && values.containsKey(arg)) {
+                    entry.getValue().complete(values.get(arg));
+                } else {
+                    cache.remove(arg, entry.getValue());
+                    entry.getValue().completeExceptionally(
+                            new IllegalStateException("no value computed for " + arg));
+                }
+            }
+        }
+    }
+
+    /**
+     * Serializes values to and from a ByteBuffer, for cache tiers that live outside the Java heap.
+     * The store frames each record, so decode is given exactly the bytes encode wrote;
+     * it must copy what it needs out of the buffer, which is only valid for the duration of the call.
+     */
+    public interface Codec<T> {
+        int sizeOf(T value);
+
+        void encode(T value, ByteBuffer dst);
+
+        T decode(ByteBuffer src);
+    }
+
+    /**
+     * Codec for the factor arrays cached by Factorizer: a count, then each factor's two's-complement bytes with their length.
+     */
+    @Immutable
+    public static class BigIntegerArrayCodec implements Codec<BigInteger[]> {
+
+        public int sizeOf(BigInteger[] factors) {
+            int size = 4;
+            for (BigInteger factor : factors)
+                size += 4 + factor.bitLength() / 8 + 1;
+            return size;
+        }
+
+        public void encode(BigInteger[] factors, ByteBuffer dst) {
+            dst.putInt(factors.length);
+            for (BigInteger factor : factors) {
+                byte[] bytes = factor.toByteArray();
+                dst.putInt(bytes.length);
+                dst.put(bytes);
+            }
+        }
+
+        public BigInteger[] decode(ByteBuffer src) {
+            BigInteger[] factors = new BigInteger[src.getInt()];
+            for (int i = 0; i < factors.length; i++) {
+                byte[] bytes = new byte[src.getInt()];
+                src.get(bytes);
+                factors[i] = new BigInteger(bytes);
+            }
+            return factors;
+        }
+    }
+
+    /**
+     * Off-heap Value Store.
+     *
+     * Values are serialized into direct ByteBuffers, so their bytes are invisible to the garbage collector;
+     * only the keys and a position per key stay on the heap.
+     * The store is split into segments of at most 1 GB, each with its own lock and allocated on its first write.
+     * A segment is a circular log: records are appended at the write position,
+     * and when the log wraps around, the oldest records are overwritten and their keys dropped (FIFO eviction).
+     */
+    @ThreadSafe
+    public static class OffHeapStore<K, V> {
+
+        private static final long MAX_SEGMENT_BYTES = 1L << 30;
+
+        private final Segment<K, V>[] segments;
+        private final Codec<V> codec;
+
+        @SuppressWarnings("unchecked")
+        public OffHeapStore(long capacityBytes, Codec<V> codec) {
+            if (capacityBytes <= 0)
+                throw new IllegalArgumentException("capacityBytes must be positive: " + capacityBytes);
+            int count = (int) Math.max(Runtime.getRuntime().availableProcessors(),
+                    (capacityBytes + MAX_SEGMENT_BYTES - 1) / MAX_SEGMENT_BYTES);
+            int segmentBytes = (int) Math.max(capacityBytes / count, 64);
+
+            this.codec = codec;
+            this.segments = (Segment<K, V>[]) new Segment<?, ?>[count];
+            for (int i = 0; i < count; i++)
+                segments[i] = new Segment<>(segmentBytes);
+        }
+
+        public V get(K key) {
+            return segmentFor(key).get(key, codec, false);
+        }
+
+        /**
+         * Removes and returns the value for key, or null if the store does not hold it.
+         */
+        public V take(K key) {
+            return segmentFor(key).get(key, codec, true);
+        }
+
+        /**
+         * Stores the value, unless its encoding does not fit in a segment.
+         */
+        public boolean put(K key, V value) {
+            return segmentFor(key).put(key, value, codec);
+        }
+
+        public long size() {
+            long size = 0;
+            for (Segment<K, V> segment : segments)
+                size += segment.size();
+            return size;
+        }
+
+        private Segment<K, V> segmentFor(K key) {
+            int h = key.hashCode();
+            h ^= (h >>> 16);
+            return segments[(h & 0x7fffffff) % segments.length];
+        }
+
+        private static final class Segment<K, V> {
+            private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+            private final int capacity;
+            // Allocated on the first put, so an unused segment reserves no direct memory
+            @GuardedBy("lock") private ByteBuffer arena;
+            // Keys in the order their records were written, mapped to the record's position in the log
+            @GuardedBy("lock") private final LinkedHashMap<K, Long> index = new LinkedHashMap<>();
+            @GuardedBy("lock") private long writePosition;
+
+            Segment(int capacity) {
+                this.capacity = capacity;
+            }
+
+            V get(K key, Codec<V> codec, boolean remove) {
+                Lock l = remove ? lock.writeLock() : lock.readLock();
+                l.lock();
+                try {
+                    Long position = remove ? index.remove(key) : index.get(key);
+                    if (position == null)
+                        return null;
+                    int offset = (int) (position % capacity);
+                    ByteBuffer src = arena.duplicate();
+                    src.limit(offset + 4 + arena.getInt(offset)).position(offset + 4);
+                    return codec.decode(src);
+                } finally {
+                    l.unlock();
+                }
+            }
+
+            boolean put(K key, V value, Codec<V> codec) {
+                int length = 4 + codec.sizeOf(value);
+                if (length > capacity)
+                    return false;
+
+                lock.writeLock().lock();
+                try {
+                    if (arena == null)
+                        arena = ByteBuffer.allocateDirect(capacity);
+                    index.remove(key);
+
+                    int offset = (int) (writePosition % capacity);
+                    if (offset + length > capacity) {
+                        // Records never wrap; skip the tail of the buffer
+                        writePosition += capacity - offset;
+                        offset = 0;
+                    }
+
+                    long end = writePosition + length;
+                    Iterator<Map.Entry<K, Long>> oldest = index.entrySet().iterator();
+                    while (oldest.hasNext() && oldest.next().getValue() < end - capacity)
+                        oldest.remove();
+
+                    arena.putInt(offset, length - 4);
+                    ByteBuffer dst = arena.duplicate();
+                    dst.limit(offset + length).position(offset + 4);
+                    codec.encode(value, dst);
+
+                    index.put(key, writePosition);
+                    writePosition = end;
+                    return true;
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+
+            int size() {
+                lock.readLock().lock();
+                try {
+                    return index.size();
+                } finally {
+                    lock.readLock().unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Memorizer with an Off-heap Second Tier.
+     *
+     * The first tier is a BoundedMemorizer holding maximumHeapSize entries on the heap.
+     * Completed values it evicts are serialized into an OffHeapStore instead of being dropped,
+     * and a first-tier miss checks the off-heap tier before computing,
+     * so a hot entry found there is promoted back to the heap on access.
+     * BoundedMemorizer evicts only completed entries, so every evicted value is available to demote;
+     * failed computations are dropped rather than demoted.
+     */
+    @ThreadSafe
+    public static class OffHeapMemorizer<A, V> implements Computable<A, V> {
+
+        private final OffHeapStore<A, V> offHeap;
+        private final BoundedMemorizer<A, V> onHeap;
+
+        public OffHeapMemorizer(final Computable<A, V> c, long maximumHeapSize, long offHeapCapacityBytes, Codec<V> codec) {
+            this.offHeap = new OffHeapStore<>(offHeapCapacityBytes, codec);
+            this.onHeap = new BoundedMemorizer<>(new Computable<A, V>() {
+                public V compute(A arg) throws InterruptedException {
+                    V value = offHeap.take(arg);
+                    return (value != null) ? value : c.compute(arg);
+                }
+            }, maximumHeapSize, new EvictionListener<A, V>() {
+                public void onEviction(A key, Future<V> f) {
+                    demote(key, f);
+                }
+            });
+        }
+
+        public V compute(A arg) throws InterruptedException {
+            return onHeap.compute(arg);
+        }
+
+        public long heapSize() {
+            return onHeap.size();
+        }
+
+        public long offHeapSize() {
+            return offHeap.size();
+        }
+
+        private void demote(A key, Future<V> f) {
+            if (f.isCancelled())
+                return;
+            try {
+                V value = f.get();
+                if (value != null)
+                    offHeap.put(key, value);
+            } catch (ExecutionException e) {
+                // Failures are not worth keeping
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Codec for BigInteger keys: the two's-complement bytes, relying on the store's framing for their length.
+     */
+    @Immutable
+    public static class BigIntegerCodec implements Codec<BigInteger> {
+
+        public int sizeOf(BigInteger value) {
+            return value.bitLength() / 8 + 1;
+        }
+
+        public void encode(BigInteger value, ByteBuffer dst) {
+            dst.put(value.toByteArray());
+        }
+
+        public BigInteger decode(ByteBuffer src) {
+            byte[] bytes = new byte[src.remaining()];
+            src.get(bytes);
+            return new BigInteger(bytes);
+        }
+    }
+
+    /**
+     * Memorizer with Snapshot and Restore for Warm Restarts.
+     *
+     * snapshot writes every successfully completed entry to a memory-mapped file,
+     * and restore loads such a file into the cache, so that a restarted node starts warm.
+     * Computations that are still in flight, canceled or failed are never written.
+     *
+     * The file is a header (magic, version, entry count), the entries as length-prefixed key and value encodings,
+     * and a CRC32 of the entry count and the entries.
+     * restore reports a damaged or truncated file as an IOException.
+     * A snapshot is written to a temporary file and then renamed over the target,
+     * so a crash while writing never leaves a truncated snapshot behind.
+     */
+    @ThreadSafe
+    public static class PersistentMemorizer<A, V> implements Computable<A, V> {
+
+        private static final int MAGIC = 0x4d454d4f;   // "MEMO"
+        private static final int VERSION = 1;
+        private static final int HEADER_BYTES = 12;
+        private static final int CHECKSUM_FROM = 8;    // the entry count and the entries
+        private static final Runnable NO_OP = new Runnable() {
+            public void run() {}
+        };
+
+        private final ConcurrentMap<A, Future<V>> cache = new ConcurrentHashMap<>();
+        private final Computable<A, V> c;
+        private final Codec<A> keyCodec;
+        private final Codec<V> valueCodec;
+
+        public PersistentMemorizer(Computable<A, V> c, Codec<A> keyCodec, Codec<V> valueCodec) {
+            this.c = c;
+            this.keyCodec = keyCodec;
+            this.valueCodec = valueCodec;
+        }
+
+        public V compute(final A arg) throws InterruptedException {
+            while (true) {
+                Future<V> f = cache.get(arg);
+
+                if (f == null) {
+                    Callable<V> eval = new Callable<V>() {
+                        public V call() throws InterruptedException {
+                            return c.compute(arg);
+                        }
+                    };
+
+                    FutureTask<V> ft = new FutureTask<>(eval);
+                    f = cache.putIfAbsent(arg, ft);
+
+                    if (f == null) {
+                        f = ft;
+                        ft.run();
+                    }
+                }
+
+                try {
+                    return f.get();
+                } catch (CancellationException e) {
+                    cache.remove(arg, f);
+                } catch (ExecutionException e) {
+                    throw launderThrowable(e.getCause());
+                }
+            }
+        }
+
+        /**
+         * Writes the completed entries to file, replacing any previous snapshot, and returns how many were written.
+         */
+        public int snapshot(Path file) throws IOException {
+            List<A> keys = new ArrayList<>();
+            List<V> values = new ArrayList<>();
+            long size = HEADER_BYTES + 8;
+
+            for (Map.Entry<A, Future<V>> entry : cache.entrySet()) {
+                V value = completedValue(entry.getValue());
+                if (value == null)
+                    continue;
+                keys.add(entry.getKey());
+                values.add(value);
+                size += 8 + keyCodec.sizeOf(entry.getKey()) + valueCodec.sizeOf(value);
+            }
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("snapshot too large: " + size + " bytes");
+
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                out.putInt(MAGIC).putInt(VERSION).putInt(keys.size());
+
+                for (int i = 0; i < keys.size(); i++) {
+                    putRecord(out, keys.get(i), keyCodec);
+                    putRecord(out, values.get(i), valueCodec);
+                }
+
+                out.putLong(checksum(out, CHECKSUM_FROM, out.position()));
+                out.force();
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return keys.size();
+        }
+
+        /**
+         * Loads a snapshot into the cache without replacing entries already present, and returns how many were added.
+         */
+        public int restore(Path file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (in.remaining() < HEADER_BYTES + 8 || in.getInt() != MAGIC)
+                    throw new IOException("not a memorizer snapshot: " + file);
+                int version = in.getInt();
+                if (version != VERSION)
+                    throw new IOException("unsupported snapshot version " + version + ": " + file);
+                int end = in.limit() - 8;
+                if (checksum(in, CHECKSUM_FROM, end) != in.getLong(end))
+                    throw new IOException("corrupt snapshot: " + file);
+
+                int count = in.getInt();
+                int restored = 0;
+                for (int i = 0; i < count; i++) {
+                    A key = getRecord(in, end, keyCodec, file);
+                    V value = getRecord(in, end, valueCodec, file);
+                    FutureTask<V> ft = new FutureTask<>(NO_OP, value);
+                    ft.run();
+                    if (cache.putIfAbsent(key, ft) == null)
+                        restored++;
+                }
+                return restored;
+            }
+        }
+
+        private V completedValue(Future<V> f) {
+            if (!f.isDone() || f.isCancelled())
+                return null;
+            try {
+                return f.get();
+            } catch (ExecutionException e) {
+                return null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+
+        private static <T> void putRecord(ByteBuffer out, T value, Codec<T> codec) {
+            int length = codec.sizeOf(value);
+            out.putInt(length);
+            int end = out.position() + length;
+            codec.encode(value, out);
+            if (out.position() != end)
+                throw new IllegalStateException("codec wrote " + (out.position() - end + length) + " bytes, sizeOf said " + length);
+        }
+
+        private static <T> T getRecord(ByteBuffer in, int end, Codec<T> codec, Path file) throws IOException {
+            if (end - in.position() < 4)
+                throw new IOException("truncated snapshot: " + file);
+            int length = in.getInt();
+            if (length < 0 || length > end - in.position())
+                throw new IOException("record length " + length + " out of bounds: " + file);
+            ByteBuffer src = in.duplicate();
+            src.limit(in.position() + length);
+            in.position(in.position() + length);
+            return codec.decode(src);
+        }
+
+        private static long checksum(ByteBuffer buffer, int from, int to) {
+            CRC32 crc = new CRC32();
+            ByteBuffer body = buffer.duplicate();
+            body.limit(to).position(from);
+            crc.update(body);
+            return crc.getValue();
+        }
+    }
+
+    /**
+     * How long a memorizer keeps serving a cached failure, and how many retries may run at once.
+     *
+     * After the n-th consecutive failure for a key, the failure is served for
+     * initialBackoff * 2^(n-1), capped at maxBackoff, before one caller is allowed to retry.
+     */
+    @Immutable
+    public static final class FailurePolicy {
+
+        private final long initialBackoffNanos;
+        private final long maxBackoffNanos;
+        private final int maxConcurrentRetries;
+
+        public FailurePolicy(long initialBackoff, long maxBackoff, TimeUnit unit, int maxConcurrentRetries) {
+            if (initialBackoff <= 0 || maxBackoff < initialBackoff)
+                throw new IllegalArgumentException("need 0 < initialBackoff <= maxBackoff");
+            if (maxConcurrentRetries <= 0)
+                throw new IllegalArgumentException("maxConcurrentRetries must be positive: " + maxConcurrentRetries);
+            this.initialBackoffNanos = unit.toNanos(initialBackoff);
+            this.maxBackoffNanos = unit.toNanos(maxBackoff);
+            this.maxConcurrentRetries = maxConcurrentRetries;
+        }
+
+        long backoffNanos(int consecutiveFailures) {
+            int shift = Math.min(consecutiveFailures - 1, 62);
+            long backoff = initialBackoffNanos << shift;
+            if ((backoff >>> shift) != initialBackoffNanos || backoff > maxBackoffNanos)
+                return maxBackoffNanos;
+            return backoff;
+        }
+    }
+
+    /**
+     * Memorizer that Caches Failures with Exponential Backoff.
+     *
+     * Memorizer keeps a failed Future forever, while evicting it on failure would let every request thread
+     * hammer a broken Computable.
+     * FailureCachingMemorizer keeps the failure for a backoff period given by its FailurePolicy, rethrowing it to every caller.
+     * Once the period has passed, a single caller replaces the failed entry with a new attempt;
+     * the others keep getting the old failure until that attempt has been published, and then join it.
+     * Retries across all keys share a Semaphore, so no more than maxConcurrentRetries of them run at once;
+     * a caller that finds no permit simply gets the cached failure.
+     */
+    @ThreadSafe
+    public static class FailureCachingMemorizer<A, V> implements Computable<A, V> {
+
+        private final ConcurrentMap<A, Attempt> cache = new ConcurrentHashMap<>();
+        private final Computable<A, V> c;
+        private final FailurePolicy policy;
+        private final Semaphore retryPermits;
+
+        public FailureCachingMemorizer(Computable<A, V> c, FailurePolicy policy) {
+            this.c = c;
+            this.policy = policy;
+            this.retryPermits = new Semaphore(policy.maxConcurrentRetries);
+        }
+
+        public V compute(final A arg) throws InterruptedException {
+            while (true) {
+                Attempt f = cache.get(arg);
+
+                if (f == null) {
+                    Attempt ft = new Attempt(arg, 0, false);
+                    f = cache.putIfAbsent(arg, ft);
+
+                    if (f == null) {
+                        f = ft;
+                        ft.run();
+                    }
+                } else if (f.failed && System.nanoTime() - f.retryAt >= 0 && retryPermits.tryAcquire()) {
+                    Attempt retry = new Attempt(arg, f.consecutiveFailures, true);
+
+                    if (!cache.replace(arg, f, retry)) {
+                        // Another caller got there first
+                        retryPermits.release();
+                        continue;
+                    }
+                    f = retry;
+                    retry.run();
+                }
+
+                try {
+                    return f.get();
+                } catch (CancellationException e) {
+                    cache.remove(arg, f);
+                } catch (ExecutionException e) {
+                    throw launderThrowable(e.getCause());
+                }
+            }
+        }
+
+        /**
+         * One attempt to compute a key, remembering how many attempts before it failed in a row.
+         */
+        private final class Attempt extends FutureTask<V> {
+            private final int priorFailures;
+            private final boolean holdsRetryPermit;
+            // Both written before the failure is published
+            volatile boolean failed;
+            volatile long retryAt;
+            int consecutiveFailures;
+
+            Attempt(final A arg, int priorFailures, boolean holdsRetryPermit) {
+                super(new Callable<V>() {
+                    public V call() throws InterruptedException {
+                        return c.compute(arg);
+                    }
+                });
+                this.priorFailures = priorFailures;
+                this.holdsRetryPermit = holdsRetryPermit;
+                this.consecutiveFailures = priorFailures;
+            }
+
+            protected void setException(Throwable t) {
+                consecutiveFailures = priorFailures + 1;
+                retryAt = System.nanoTime() + policy.backoffNanos(consecutiveFailures);
+                failed = true;
+                super.setException(t);
+            }
+
+            protected void done() {
+                if (holdsRetryPermit)
+                    retryPermits.release();
+            }
+        }
+    }
+
+    /**
+     * A function of a long argument, computed without boxing the key.
+     */
+    public interface LongComputable<V> {
+        V compute(long arg) throws InterruptedException;
+    }
+
+    /**
+     * A function of an int argument, computed without boxing the key.
+     */
+    public interface IntComputable<V> {
+        V compute(int arg) throws InterruptedException;
+    }
+
+    /**
+     * Memorizer Specialized for Primitive Keys.
+     *
+     * A ConcurrentHashMap keyed by Long costs a boxed key and a map node per entry, and a pointer chase per lookup.
+     * LongMemorizer keeps its keys in a long[] open-addressing table (linear probing),
+     * with the slots in a parallel AtomicReferenceArray.
+     *
+     * While a key is being computed its slot holds the FutureTask, so concurrent callers still share one computation.
+     * Once the computation succeeds the slot is overwritten with the value itself,
+     * so a completed entry costs a long and a reference, and a hit allocates nothing and never calls Future.get.
+     * Failed computations keep their FutureTask, so the failure is rethrown as Memorizer would.
+     *
+     * Lookups take no lock: a slot is published by a volatile write after its key has been written,
+     * and a table that has been resized away is never modified again.
+     * Insertions, removals and resizes are serialized by a private lock.
+     */
+    @ThreadSafe
+    public static class LongMemorizer<V> implements LongComputable<V> {
+
+        private static final Object NULL_VALUE = new Object();
+        private static final Object TOMBSTONE = new Object();
+
+        private final LongComputable<V> c;
+        private final Object lock = new Object();
+        private volatile Table table = new Table(16);
+
+        public LongMemorizer(LongComputable<V> c) {
+            this.c = c;
+        }
+
+        @SuppressWarnings("unchecked")
+        public V compute(long arg) throws InterruptedException {
+            while (true) {
+                Object slot = table.get(arg);
+
+                if (slot == null) {
+                    Pending ft = null;
+                    synchronized (lock) {
+                        slot = table.get(arg);
+                        if (slot == null) {
+                            ft = new Pending(arg);
+                            insert(arg, ft);
+                        }
+                    }
+                    if (ft != null) {
+                        ft.run();
+                        publish(arg, ft);
+                        slot = ft;
+                    }
+                }
+
+                if (!(slot instanceof LongMemorizer.Pending))
+                    return (slot == NULL_VALUE) ? null : (V) slot;
+
+                Pending f = (Pending) slot;
+                try {
+                    return f.get();
+                } catch (CancellationException e) {
+                    remove(arg, f);
+                } catch (ExecutionException e) {
+                    throw launderThrowable(e.getCause());
+                }
+            }
+        }
+
+        public int size() {
+            synchronized (lock) {
+                return table.size;
+            }
+        }
+
+        private void publish(long arg, Pending ft) {
+            if (ft.isCancelled())
+                return;
+            Object value;
+            try {
+                V v = ft.get();
+                value = (v == null) ? NULL_VALUE : v;
+            } catch (ExecutionException e) {
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            synchronized (lock) {
+                table.replace(arg, ft, value);
+            }
+        }
+
+        private void remove(long arg, Pending f) {
+            synchronized (lock) {
+                table.replace(arg, f, TOMBSTONE);
+            }
+        }
+
+        // Called with lock held
+        private void insert(long arg, Object value) {
+            Table t = table;
+            if ((t.used + 1) * 2 > t.keys.length) {
+                t = t.resize();
+                table = t;
+            }
+            t.insert(arg, value);
+        }
+
+        private final class Pending extends FutureTask<V> {
+            Pending(final long arg) {
+                super(new Callable<V>() {
+                    public V call() throws InterruptedException {
+                        return c.compute(arg);
+                    }
+                });
+            }
+        }
+
+        /**
+         * Linear-probing table; an empty slot ends a probe, a TOMBSTONE does not.
+         */
+        private static final class Table {
+            final long[] keys;
+            final AtomicReferenceArray<Object> slots;
+            final int mask;
+            // Guarded by the memorizer's lock
+            int size;
+            int used;
+
+            Table(int capacity) {
+                this.keys = new long[capacity];
+                this.slots = new AtomicReferenceArray<>(capacity);
+                this.mask = capacity - 1;
+            }
+
+            Object get(long key) {
+                for (int i = indexFor(key); ; i = (i + 1) & mask) {
+                    Object slot = slots.get(i);
+                    if (slot == null)
+                        return null;
+                    if (slot != TOMBSTONE && keys[i] == key)
+                        return slot;
+                }
+            }
+
+            void insert(long key, Object value) {
+                int i = indexFor(key);
+                while (slots.get(i) != null)
+                    i = (i + 1) & mask;
+                keys[i] = key;
+                slots.set(i, value);
+                size++;
+                used++;
+            }
+
+            void replace(long key, Object expected, Object value) {
+                for (int i = indexFor(key); ; i = (i + 1) & mask) {
+                    Object slot = slots.get(i);
+                    if (slot == null)
+                        return;
+                    if (slot == expected && keys[i] == key) {
+                        slots.set(i, value);
+                        if (value == TOMBSTONE)
+                            size--;
+                        return;
+                    }
+                }
+            }
+
+            Table resize() {
+                int capacity = Integer.highestOneBit(Math.max(size, 4) * 4);
+                Table t = new Table(capacity);
+                for (int i = 0; i < keys.length; i++) {
+                    Object slot = slots.get(i);
+                    if (slot != null && slot != TOMBSTONE)
+                        t.insert(keys[i], slot);
+                }
+                return t;
+            }
+
+            private int indexFor(long key) {
+                key = (key ^ (key >>> 33)) * 0xff51afd7ed558ccdL;
+                key = (key ^ (key >>> 33)) * 0xc4ceb9fe1a85ec53L;
+                return (int) (key ^ (key >>> 33)) & mask;
+            }
+        }
+    }
+
+    /**
+     * IntMemorizer widens its keys into a LongMemorizer; an int key costs the same 8-byte slot.
+     */
+    @ThreadSafe
+    public static class IntMemorizer<V> implements IntComputable<V> {
+
+        private final LongMemorizer<V> delegate;
+
+        public IntMemorizer(final IntComputable<V> c) {
+            this.delegate = new LongMemorizer<>(new LongComputable<V>() {
+                public V compute(long arg) throws InterruptedException {
+                    return c.compute((int) arg);
+                }
+            });
+        }
+
+        public V compute(int arg) throws InterruptedException {
+            return delegate.compute(arg);
+        }
+
+        public int size() {
+            return delegate.size();
+        }
+    }
+
+    /**
+     * Consistent hash ring mapping keys to node ids.
+     *
+     * Each node is placed on the ring at virtualNodes points, and a key belongs to the first node point at or after its hash.
+     * Adding or removing a node therefore moves only the keys next to its points.
+     * Keys are placed by hashCode, so every JVM in the cluster must compute the same hashCode for a key
+     * (true of String, Long and BigInteger, but not of identity-hashed objects).
+     */
+    @Immutable
+    public static final class ConsistentHashRing {
+
+        private final TreeMap<Long, String> ring = new TreeMap<>();
+
+        public ConsistentHashRing(Collection<String> nodeIds, int virtualNodes) {
+            if (nodeIds.isEmpty())
+                throw new IllegalArgumentException("ring needs at least one node");
+            for (String nodeId : nodeIds)
+                for (int i = 0; i < virtualNodes; i++)
+                    ring.put(hash(nodeId + "#" + i), nodeId);
+        }
+
+        public String nodeFor(Object key) {
+            Map.Entry<Long, String> entry = ring.ceilingEntry(mix(key.hashCode()));
+            return (entry != null) ? entry.getValue() : ring.firstEntry().getValue();
+        }
+
+        private static long hash(String s) {
+            long h = 0xcbf29ce484222325L;   // FNV-1a
+            for (int i = 0; i < s.length(); i++) {
+                h ^= s.charAt(i);
+                h *= 0x100000001b3L;
+            }
+            return mix(h);
+        }
+
+        private static long mix(long h) {
+            h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+            h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+            return h ^ (h >>> 33);
+        }
+    }
+
+    /**
+     * Carries a compute request to the node that owns the key.
+     */
+    public interface Transport<A, V> {
+        Future<V> send(String nodeId, A arg);
+    }
+
+    /**
+     * Transport between DistributedMemorizers in the same JVM, for tests and single-process deployments.
+     * Each request runs on the executor, which waits on the owner's cache entry.
+     */
+    @ThreadSafe
+    public static class InProcessTransport<A, V> implements Transport<A, V> {
+
+        private final ConcurrentMap<String, DistributedMemorizer<A, V>> nodes = new ConcurrentHashMap<>();
+        private final Executor executor;
+
+        public InProcessTransport(Executor executor) {
+            this.executor = executor;
+        }
+
+        public void register(DistributedMemorizer<A, V> node) {
+            nodes.put(node.nodeId(), node);
+        }
+
+        public Future<V> send(final String nodeId, final A arg) {
+            FutureTask<V> request = new FutureTask<>(new Callable<V>() {
+                public V call() throws InterruptedException {
+                    DistributedMemorizer<A, V> node = nodes.get(nodeId);
+                    if (node == null)
+                        throw new IllegalStateException("unknown node: " + nodeId);
+                    return node.computeOwned(arg);
+                }
+            });
+            executor.execute(request);
+            return request;
+        }
+    }
+
+    /**
+     * Sharded Memorizer.
+     *
+     * Every node of the cluster shares the same ConsistentHashRing, so all of them agree on which node owns a key.
+     * The owner computes and caches the key exactly like Memorizer;
+     * any other node forwards its misses to the owner over a Transport instead of computing them itself.
+     * Remote requests for a key that is being computed wait on the owner's in-flight FutureTask,
+     * so each key is computed once per cluster rather than once per JVM.
+     *
+     * A non-owner does not keep the results it receives; it only collapses concurrent local requests for the same key
+     * into one remote request.
+     */
+    @ThreadSafe
+    public static class DistributedMemorizer<A, V> implements Computable<A, V> {
+
+        private final ConcurrentMap<A, Future<V>> cache = new ConcurrentHashMap<>();
+        private final ConcurrentMap<A, Future<V>> forwards = new ConcurrentHashMap<>();
+        private final String nodeId;
+        private final ConsistentHashRing ring;
+        private final Transport<A, V> transport;
+        private final Computable<A, V> c;
+
+        public DistributedMemorizer(String nodeId, ConsistentHashRing ring, Transport<A, V> transport, Computable<A, V> c) {
+            this.nodeId = nodeId;
+            this.ring = ring;
+            this.transport = transport;
+            this.c = c;
+        }
+
+        public String nodeId() {
+            return nodeId;
+        }
+
+        public V compute(A arg) throws InterruptedException {
+            String owner = ring.nodeFor(arg);
+            return owner.equals(nodeId) ? computeOwned(arg) : forward(owner, arg);
+        }
+
+        /**
+         * Computes a key this node owns; called locally and by the transport on behalf of other nodes.
+         */
+        public V computeOwned(final A arg) throws InterruptedException {
+            while (true) {
+                Future<V> f = cache.get(arg);
+
+                if (f == null) {
+                    Callable<V> eval = new Callable<V>() {
+                        public V call() throws InterruptedException {
+                            return c.compute(arg);
+                        }
+                    };
+
+                    FutureTask<V> ft = new FutureTask<>(eval);
+                    f = cache.putIfAbsent(arg, ft);
+
+                    if (f == null) {
+                        f = ft;
+                        ft.run();
+                    }
+                }
+
+                try {
+                    return f.get();
+                } catch (CancellationException e) {
+                    cache.remove(arg, f);
+                } catch (ExecutionException e) {
+                    throw launderThrowable(e.getCause());
+                }
+            }
+        }
+
+        private V forward(final String owner, final A arg) throws InterruptedException {
+            Future<V> f = forwards.get(arg);
+
+            if (f == null) {
+                FutureTask<V> ft = new FutureTask<>(new Callable<V>() {
+                    public V call() throws Exception {
+                        try {
+                            return transport.send(owner, arg).get();
+                        } catch (ExecutionException e) {
+                            if (e.getCause() instanceof Exception)
+                                throw (Exception) e.getCause();
+                            throw launderThrowable(e.getCause());
+                        }
+                    }
+                });
+                f = forwards.putIfAbsent(arg, ft);
+
+                if (f == null) {
+                    f = ft;
+                    try {
+                        ft.run();
+                    } finally {
+                        forwards.remove(arg, ft);
+                    }
+                }
+            }
+
+            try {
+                return f.get();
+            } catch (ExecutionException e) {
+                throw launderThrowable(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Benchmark of the Four Memorizer Generations.
+     *
+     * Measures Memorizer1, Memorizer2, Memorizer3 and Memorizer at 1 to 64 threads,
+     * under Zipfian and uniform key distributions and a range of compute costs.
+     * Each run uses a fresh cache, releases its workers through a starting gate like TestHarness,
+     * warms up, and then measures for a fixed time.
+     * It reports throughput, latency percentiles from a LatencyHistogram, and bytes allocated per operation
+     * (from the JVM's per-thread allocation counters, where available), one CSV line per run.
+     *
+     * Keys are generated and boxed before the run, so neither the generator nor boxing is measured.
+     *
+     * Usage: MemorizerBenchmark [warmupMillis] [measureMillis] [maxThreads]
+     */
+    public static class MemorizerBenchmark {
+
+        private static final int KEY_SPACE = 100000;
+        private static final int KEYS_PER_THREAD = 1 << 16;
+        private static final int[] COMPUTE_COSTS = { 0, 1000, 100000 };   // busy-work iterations per miss
+
+        private final long warmupMillis;
+        private final long measureMillis;
+        private final int maxThreads;
+
+        public MemorizerBenchmark(long warmupMillis, long measureMillis, int maxThreads) {
+            this.warmupMillis = warmupMillis;
+            this.measureMillis = measureMillis;
+            this.maxThreads = maxThreads;
+        }
+
+        public static void main(String[] args) throws InterruptedException {
+            long warmup = (args.length > 0) ? Long.parseLong(args[0]) : 1000;
+            long measure = (args.length > 1) ? Long.parseLong(args[1]) : 2000;
+            int maxThreads = (args.length > 2) ? Integer.parseInt(args[2]) : 64;
+            new MemorizerBenchmark(warmup, measure, maxThreads).run(System.out);
+        }
+
+        public void run(PrintStream out) throws InterruptedException {
+            out.println("memorizer,distribution,cost,threads,opsPerSec,p50Nanos,p99Nanos,p999Nanos,bytesPerOp");
+            for (String distribution : new String[] { "zipfian", "uniform" }) {
+                for (int cost : COMPUTE_COSTS) {
+                    for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                        for (String memorizer : new String[] { "Memorizer1", "Memorizer2", "Memorizer3", "Memorizer" }) {
+                            Result r = runOnce(newMemorizer(memorizer, cost), keys(distribution, threads), threads);
+                            out.println(memorizer + "," + distribution + "," + cost + "," + threads + ","
+                                    + String.format("%.0f", r.opsPerSecond) + ","
+                                    + LatencyHistogram.valueAtPercentile(r.latencyCounts, 50) + ","
+                                    + LatencyHistogram.valueAtPercentile(r.latencyCounts, 99) + ","
+                                    + LatencyHistogram.valueAtPercentile(r.latencyCounts, 99.9) + ","
+                                    + String.format("%.1f", r.bytesPerOperation));
+                        }
+                    }
+                }
+            }
+        }
+
+        private Result runOnce(final Computable<Integer, Integer> memorizer, final Integer[][] keys, int nThreads)
+                throws InterruptedException {
+            final CountDownLatch startGate = new CountDownLatch(1);
+            final CountDownLatch endGate = new CountDownLatch(nThreads);
+            final AtomicBoolean measuring = new AtomicBoolean();
+            final AtomicBoolean stopped = new AtomicBoolean();
+            final LatencyHistogram latency = new LatencyHistogram();
+            final LongAdder operations = new LongAdder();
+            final LongAdder allocatedBytes = new LongAdder();
+
+            for (int i = 0; i < nThreads; i++) {
+                final Integer[] threadKeys = keys[i];
+                Thread t = new Thread() {
+                    public void run() {
+                        try {
+                            startGate.await();
+                            long ops = 0;
+                            long allocatedAtStart = -1;
+                            int k = 0;
+                            while (!stopped.get()) {
+                                Integer key = threadKeys[k++ & (KEYS_PER_THREAD - 1)];
+                                long start = System.nanoTime();
+                                memorizer.compute(key);
+                                long elapsed = System.nanoTime() - start;
+
+                                if (measuring.get()) {
+                                    if (allocatedAtStart < 0)
+                                        allocatedAtStart = allocatedBytes();
+                                    latency.record(elapsed);
+                                    ops++;
+                                }
+                            }
+                            operations.add(ops);
+                            if (allocatedAtStart >= 0)
+                                allocatedBytes.add(allocatedBytes() - allocatedAtStart);
+                        } catch (InterruptedException ignored) {
+
+                        } finally {
+                            endGate.countDown();
+                        }
+                    }
+                };
+                t.start();
+            }
+
+            startGate.countDown();
+            Thread.sleep(warmupMillis);
+            long start = System.nanoTime();
+            measuring.set(true);
+            Thread.sleep(measureMillis);
+            stopped.set(true);
+            long elapsed = System.nanoTime() - start;
+            endGate.await();
+
+            long ops = operations.sum();
+            return new Result(ops * 1e9 / elapsed, latency.counts(),
+                    (ops == 0) ? 0 : (double) allocatedBytes.sum() / ops);
+        }
+
+        private static Computable<Integer, Integer> newMemorizer(String name, final int cost) {
+            Computable<Integer, Integer> function = new Computable<Integer, Integer>() {
+                public Integer compute(Integer arg) {
+                    return busyWork(arg, cost);
+                }
+            };
+            switch (name) {
+                case "Memorizer1": return new Memorizer1<>(function);
+                case "Memorizer2": return new Memorizer2<>(function);
+                case "Memorizer3": return new Memorizer3<>(function);
+                default:           return new Memorizer<>(function);
+            }
+        }
+
+        private static Integer[][] keys(String distribution, int nThreads) {
+            Random random = new Random(42);
+            ZipfianGenerator zipfian = new ZipfianGenerator(KEY_SPACE, 0.99);
+            Integer[][] keys = new Integer[nThreads][KEYS_PER_THREAD];
+            for (Integer[] threadKeys : keys)
+                for (int i = 0; i < KEYS_PER_THREAD; i++)
+                    threadKeys[i] = "zipfian".equals(distribution)
+                            ? (int) zipfian.next(random) : random.nextInt(KEY_SPACE);
+            return keys;
+        }
+
+        private static Integer busyWork(int seed, int iterations) {
+            int x = seed;
+            for (int i = 0; i < iterations; i++)
+                x = x * 1103515245 + 12345;
+            return x;
+        }
+
+        private static long allocatedBytes() {
+            java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (bean instanceof com.sun.management.ThreadMXBean)
+                return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+            return 0;
+        }
+
+        private static final class Result {
+            final double opsPerSecond;
+            final long[] latencyCounts;
+            final double bytesPerOperation;
+
+            Result(double opsPerSecond, long[] latencyCounts, double bytesPerOperation) {
+                this.opsPerSecond = opsPerSecond;
+                this.latencyCounts = latencyCounts;
+                this.bytesPerOperation = bytesPerOperation;
+            }
+        }
+    }
+
+    /**
+     * Generates ranks 0..n-1 following a Zipfian distribution with exponent theta (Gray et al., as used by YCSB).
+     */
+    @Immutable
+    static final class ZipfianGenerator {
+        private final long items;
+        private final double theta;
+        private final double zetan;
+        private final double alpha;
+        private final double eta;
+
+        ZipfianGenerator(long items, double theta) {
+            this.items = items;
+            this.theta = theta;
+            this.zetan = zeta(items, theta);
+            this.alpha = 1.0 / (1.0 - theta);
+            this.eta = (1 - Math.pow(2.0 / items, 1 - theta)) / (1 - zeta(2, theta) / zetan);
+        }
+
+        long next(Random random) {
+            double u = random.nextDouble();
+            double uz = u * zetan;
+            if (uz < 1.0)
+                return 0;
+            if (uz < 1.0 + Math.pow(0.5, theta))
+                return 1;
+            return Math.min(items - 1, (long) (items * Math.pow(eta * u - eta + 1, alpha)));
+        }
+
+        private static double zeta(long n, double theta) {
+            double sum = 0;
+            for (long i = 1; i <= n; i++)
+                sum += 1 / Math.pow(i, theta);
+            return sum;
+        }
+    }
+
+    /**
+     * Count-Min sketch of 4-bit counters estimating how often a key has been seen recently.
+     *
+     * Each long holds sixteen counters, and a key is spread over four of them in four different longs.
+     * Once the number of increments reaches ten times the table size, every counter is halved,
+     * so the sketch tracks recent popularity instead of all-time totals.
+     */
+    @NotThreadSafe
+    static final class FrequencySketch {
+
+        private static final long[] SEED = {
+                0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+        private static final long RESET_MASK = 0x7777777777777777L;
+
+        private final long[] table;
+        private final int tableMask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(long maximumSize) {
+            int capacity = (int) Math.min(Math.max(maximumSize, 1), 1 << 30);
+            int length = Integer.highestOneBit(capacity - 1) << 1;
+            this.table = new long[Math.max(length, 1)];
+            this.tableMask = table.length - 1;
+            this.sampleSize = (int) Math.min(10L * table.length, Integer.MAX_VALUE);
+        }
+
+        int frequency(Object key) {
+            int hash = spread(key.hashCode());
+            int start = (hash & 3) << 2;
+            int frequency = Integer.MAX_VALUE;
+            for (int i = 0; i < 4; i++) {
+                int index = indexOf(hash, i);
+                int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+                frequency = Math.min(frequency, count);
+            }
+            return frequency;
+        }
+
+        void increment(Object key) {
+            int hash = spread(key.hashCode());
+            int start = (hash & 3) << 2;
+            boolean added = false;
+            for (int i = 0; i < 4; i++)
+                added |= incrementAt(indexOf(hash, i), start + i);
+
+            if (added && ++additions == sampleSize)
+                reset();
+        }
+
+        private boolean incrementAt(int i, int j) {
+            int offset = j << 2;
+            long mask = 0xfL << offset;
+            if ((table[i] & mask) != mask) {
+                table[i] += 1L << offset;
+                return true;
+            }
+            return false;
+        }
+
+        private void reset() {
+            for (int i = 0; i < table.length; i++)
+                table[i] = (table[i] >>> 1) & RESET_MASK;
+            additions >>>= 1;
+        }
+
+        private int indexOf(int item, int i) {
+            long hash = (item + SEED[i]) * SEED[i];
+            hash += hash >>> 32;
+            return ((int) hash) & tableMask;
+        }
+
+        private static int spread(int x) {
+            x = ((x >>> 16) ^ x) * 0x45d9f3b;
+            x = ((x >>> 16) ^ x) * 0x45d9f3b;
+            return (x >>> 16) ^ x;
+        }
+    }
+
 
 
     public static void main(String[] args) {
@@ -287,6 +2848,24 @@ public class Sec0506_BuildingResultCache {
         Memorizer2<String, Integer> memorizer2 = new Memorizer2<>(null);
         Memorizer3<String, Integer> memorizer3 = new Memorizer3<>(null);
         Memorizer<String, Integer> memorizer = new Memorizer<>(null);
+        InstrumentedMemorizer<String, Integer> instrumentedMemorizer = new InstrumentedMemorizer<>(null);
+        BoundedMemorizer<String, Integer> boundedMemorizer = new BoundedMemorizer<>(null, 1000);
+        ReferenceValueMemorizer<String, Integer> referenceValueMemorizer =
+                new ReferenceValueMemorizer<>(null, ReferenceValueMemorizer.Strength.SOFT, 1000, null);
+        ExpiringMemorizer<String, Integer> expiringMemorizer =
+                new ExpiringMemorizer<>(null, 10, 8, TimeUnit.MINUTES, Executors.newSingleThreadExecutor());
+        AsyncMemorizer<String, Integer> asyncMemorizer = new AsyncMemorizer<>(null, Executors.newCachedThreadPool());
+        BatchMemorizer<String, Integer> batchMemorizer = new BatchMemorizer<>(null);
+        OffHeapMemorizer<BigInteger, BigInteger[]> offHeapMemorizer =
+                new OffHeapMemorizer<>(null, 10000, 16L << 20, new BigIntegerArrayCodec());
+        PersistentMemorizer<BigInteger, BigInteger[]> persistentMemorizer =
+                new PersistentMemorizer<>(null, new BigIntegerCodec(), new BigIntegerArrayCodec());
+        FailureCachingMemorizer<String, Integer> failureCachingMemorizer =
+                new FailureCachingMemorizer<>(null, new FailurePolicy(100, 30000, TimeUnit.MILLISECONDS, 4));
+        LongMemorizer<Integer> longMemorizer = new LongMemorizer<>(null);
+        IntMemorizer<Integer> intMemorizer = new IntMemorizer<>(null);
+        DistributedMemorizer<String, Integer> distributedMemorizer = new DistributedMemorizer<>("node-1",
+                new ConsistentHashRing(Collections.singleton("node-1"), 160), null, null);
     }
 
 }
@@ -1,6 +1,13 @@
 package com.concurrency_in_practice.part_2_structuring_concurrent_applications.chap06_task_execution;
 
+import com.concurrency_in_practice.common.Annotation.ThreadSafe;
+import com.concurrency_in_practice.common.FactorAdmission;
+
+import javax.servlet.Servlet;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
 import java.io.IOException;
+import java.math.BigInteger;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.Timer;
@@ -117,6 +124,14 @@ import java.util.concurrent.TimeUnit;
  * And using an Executor opens the door to all sorts of additional opportunities for tuning, management, monitoring, logging, error reporting,
  * and other possibilities that would have been far more difficult to add without a task execution framework.
  *
+ * A single bounded pool is not enough when tasks differ widely in cost.
+ * A few expensive factorizations arriving together occupy every worker, and cheap requests queue behind them.
+ * AdmissionControlledFactorizer gives each class of task its own execution policy:
+ * the input's bit length decides whether a request is heavy,
+ * heavy requests run in a small pool of their own and are rejected outright once it is saturated,
+ * and light requests are limited in number and rejected if they cannot start within a short time.
+ * Rejecting excess work early keeps the latency of the requests that are admitted stable.
+ *
  * 6.2.4. Executor Lifecycle
  *
  * To address the issue of execution service lifecycle, the ExecutorService interface extends Executor,
@@ -232,6 +247,47 @@ public class Sec0602_TheExecutorFramework {
         }
     }
 
+    /**
+     * Factorizing servlet that admits requests according to their estimated cost.
+     */
+    @ThreadSafe
+    public abstract static class AdmissionControlledFactorizer implements Servlet {
+        private static final int HEAVY_BITS = 100;      // Above this FactorEngine resorts to ECM
+        private static final int NCPUS = Runtime.getRuntime().availableProcessors();
+
+        private final FactorAdmission admission = new FactorAdmission(
+                FactorAdmission.bitLengthAbove(HEAVY_BITS),
+                2 * NCPUS, 50, TimeUnit.MILLISECONDS,
+                Math.max(1, NCPUS / 4), 2 * NCPUS);
+
+        public void service(ServletRequest req, ServletResponse resp) {
+            try {
+                BigInteger i = extractFromRequest(req);
+                encodeIntoResponse(resp, admission.factor(i));
+            } catch (RejectedExecutionException e) {
+                encodeError(resp, "server busy, retry later");
+            } catch (InterruptedException e) {
+                encodeError(resp, "factorization interrupted");
+            }
+        }
+
+        public void destroy() {
+            admission.shutdown();
+        }
+
+        private BigInteger extractFromRequest(ServletRequest req) {
+            return null;
+        }
+
+        private void encodeIntoResponse(ServletResponse resp, BigInteger[] factors) {
+
+        }
+
+        private void encodeError(ServletResponse resp, String errorMessage) {
+
+        }
+    }
+
     /**
      * 6.2.4. Executor Lifecycle
      */
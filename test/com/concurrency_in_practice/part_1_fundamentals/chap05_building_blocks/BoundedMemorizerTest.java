@@ -0,0 +1,101 @@
+package com.concurrency_in_practice.part_1_fundamentals.chap05_building_blocks;
+
+import com.concurrency_in_practice.part_1_fundamentals.chap05_building_blocks.Sec0506_BuildingResultCache.BoundedMemorizer;
+import com.concurrency_in_practice.part_1_fundamentals.chap05_building_blocks.Sec0506_BuildingResultCache.Computable;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks for BoundedMemorizer, run from main; a failed check throws AssertionError.
+ */
+public class BoundedMemorizerTest {
+
+    public static void main(String[] args) throws Exception {
+        smallestMaximumSizes();
+        inFlightComputationIsNotEvicted();
+        System.out.println("BoundedMemorizerTest passed");
+    }
+
+    /**
+     * With a maximum of 1 or 2 the main space has little or no room, so admission must cope with an empty segment.
+     */
+    static void smallestMaximumSizes() throws InterruptedException {
+        for (int maximumSize = 1; maximumSize <= 2; maximumSize++) {
+            BoundedMemorizer<Integer, Integer> memorizer = new BoundedMemorizer<>(new Computable<Integer, Integer>() {
+                public Integer compute(Integer arg) {
+                    return arg * 2;
+                }
+            }, maximumSize);
+
+            for (int round = 0; round < 3; round++) {
+                for (int i = 0; i < 20; i++) {
+                    check(memorizer.compute(i) == i * 2, "wrong value for " + i);
+                    check(memorizer.size() <= maximumSize,
+                            "size " + memorizer.size() + " exceeds maximum " + maximumSize);
+                }
+            }
+        }
+    }
+
+    /**
+     * Holds one computation open while other keys overflow the cache,
+     * then checks that a second caller for the held key still shares the first computation.
+     */
+    static void inFlightComputationIsNotEvicted() throws Exception {
+        final int heldKey = -1;
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger heldComputations = new AtomicInteger();
+
+        final BoundedMemorizer<Integer, Integer> memorizer = new BoundedMemorizer<>(new Computable<Integer, Integer>() {
+            public Integer compute(Integer arg) throws InterruptedException {
+                if (arg == heldKey) {
+                    heldComputations.incrementAndGet();
+                    started.countDown();
+                    release.await();
+                }
+                return arg;
+            }
+        }, 4);
+
+        ExecutorService exec = Executors.newFixedThreadPool(2);
+        try {
+            Future<Integer> first = exec.submit(new Callable<Integer>() {
+                public Integer call() throws InterruptedException {
+                    return memorizer.compute(heldKey);
+                }
+            });
+            check(started.await(10, TimeUnit.SECONDS), "held computation did not start");
+
+            for (int i = 0; i < 1000; i++)
+                memorizer.compute(i);
+
+            Future<Integer> second = exec.submit(new Callable<Integer>() {
+                public Integer call() throws InterruptedException {
+                    return memorizer.compute(heldKey);
+                }
+            });
+            Thread.sleep(100);
+            release.countDown();
+
+            check(first.get(10, TimeUnit.SECONDS) == heldKey, "wrong value from first caller");
+            check(second.get(10, TimeUnit.SECONDS) == heldKey, "wrong value from second caller");
+            check(heldComputations.get() == 1,
+                    "held key computed " + heldComputations.get() + " times");
+            check(memorizer.size() <= 4, "size " + memorizer.size() + " exceeds maximum 4");
+        } finally {
+            exec.shutdownNow();
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition)
+            throw new AssertionError(message);
+    }
+}